@@ -69,8 +69,8 @@ public class UserInfoDAO implements Serializable{
 		
 		public synchronized UserInfo[] getUserList() throws DAOException{
 			try {
-				UserInfo[] users = factory.match();
-				//TODO Arrays.sort(users);  // We want them sorted by last and first names (as per User.compareTo());
+				// Sorted by the database rather than in memory
+				UserInfo[] users = factory.match(MatchArg.orderBy("name"));
 				return users;
 			} catch (RollbackException e) {
 				throw new DAOException(e);
@@ -3,6 +3,7 @@ package org.mybeans.dao;
 import java.io.File;
 import java.lang.reflect.Method;
 
+import org.mybeans.factory.BeanCursor;
 import org.mybeans.factory.BeanFactory;
 import org.mybeans.factory.BeanFactoryException;
 import org.mybeans.factory.BeanTable;
@@ -62,6 +63,22 @@ public class GenericDAO<B> {
 		table.setIdleConnectionCleanup(enable);
 	}
 	
+	public void setConnectionLimits(int maxConnections, int minIdleConnections, long acquireTimeoutMillis) {
+		table.setConnectionLimits(maxConnections,minIdleConnections,acquireTimeoutMillis);
+	}
+	
+	public void setFetchSize(int rows) {
+		table.setFetchSize(rows);
+	}
+	
+	public void setLookupBatchSize(int keys) {
+		table.setLookupBatchSize(keys);
+	}
+	
+	public void setIdBlockSize(int ids) {
+		table.setIdBlockSize(ids);
+	}
+	
 	public void setUseAutoIncrementOnCreate(boolean enable) {
 		if (primaryKeyPropertyNames.length != 1) {
 			throw new UnsupportedOperationException("Auto-increment only works if there are one primary key column");
@@ -113,16 +130,25 @@ public class GenericDAO<B> {
 		}
 	}
 	
-	public void createOrUpdate(B bean) throws DAOException {
+	/*
+	 * Creates all the beans in one transaction.  With auto-increment, each bean is
+	 * created in turn (so it gets the next key), otherwise the beans are written in batches.
+	 */
+	public void createAll(B[] beans) throws DAOException {
+		if (!autoIncrementOnCreate) {
+			try {
+				factory.createAll(beans);
+				return;
+			} catch (RollbackException e) {
+				throw new DAOException(e);
+			}
+		}
+
 		try {
 			Transaction.begin();
-
-			Object[] pkValues = factory.getPrimaryKeyValues(bean);
-			B dbBean = factory.lookup(pkValues);
-
-			if (dbBean == null) dbBean = factory.create(pkValues);
-			
-			factory.copyInto(bean,dbBean);
+			for (B bean : beans) {
+				factory.copyInto(bean,factory.create());
+			}
 			Transaction.commit();
 		} catch (RollbackException e) {
 			throw new DAOException(e);
@@ -131,6 +157,14 @@ public class GenericDAO<B> {
 		}
 	}
 	
+	public void createOrUpdate(B bean) throws DAOException {
+		try {
+			factory.upsert(bean);
+		} catch (RollbackException e) {
+			throw new DAOException(e);
+		}
+	}
+	
 	public void delete(Object...primaryKeyValues) throws DAOException {
 		try {
 			factory.delete(primaryKeyValues);
@@ -148,6 +182,14 @@ public class GenericDAO<B> {
 		}
 	}
 
+	public BeanCursor<B> iterateAll() throws DAOException {
+		try {
+			return factory.iterate();
+		} catch (RollbackException e) {
+			throw new DAOException(e);
+		}
+	}
+
 	public int getCount() throws DAOException {
 		try {
 			return factory.getBeanCount();
@@ -167,6 +209,14 @@ public class GenericDAO<B> {
 		}
 	}
 	
+	public B[] lookupAll(Object[]...primaryKeyValues) throws DAOException {
+		try {
+			return factory.lookupAll(primaryKeyValues);
+		} catch (RollbackException e) {
+			throw new DAOException(e);
+		}
+	}
+	
 	public void update(B bean) throws DAOException {
 		try {
 			Transaction.begin();
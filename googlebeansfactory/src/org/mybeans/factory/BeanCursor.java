@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory;
+
+/**
+ * Iterates over the beans matching a set of constraints without first building
+ * an array of all of them.  Use with the <tt>BeanFactory.iterate()</tt> method.
+ * <p>
+ * Beans are made from the database a few at a time as the cursor is advanced,
+ * so memory use does not depend on the number of beans matched.  Cursors hold
+ * database resources (such as a connection) until they reach the end or are closed,
+ * so they should be closed in a <code>finally</code> clause.  For example:
+ * <p><blockquote><pre>
+ *     BeanCursor&lt;User&gt; cursor = userFactory.iterate(MatchArg.startsWith("userName","a"));
+ *     try {
+ *         while (cursor.hasNext()) {
+ *             User u = cursor.next();
+ *             ...
+ *         }
+ *     } finally {
+ *         cursor.close();
+ *     }
+ * </pre></blockquote>
+ * <p>
+ * (This is not a <tt>java.util.Iterator</tt> because fetching the next bean may throw
+ * <tt>RollbackException</tt>.)
+ */
+public interface BeanCursor<B> {
+	/**
+	 * Tests whether there are more matching beans.
+	 * @return <tt>true</tt> if <tt>next()</tt> will return another bean.
+	 * @throws RollbackException if there is an error accessing the database.
+	 *     (The cursor is closed before the exception is thrown.)
+	 */
+	public boolean hasNext() throws RollbackException;
+
+	/**
+	 * Returns the next matching bean.
+	 * @return the next matching bean.
+	 * @throws java.util.NoSuchElementException if there are no more matching beans.
+	 * @throws RollbackException if there is an error accessing the database.
+	 *     (The cursor is closed before the exception is thrown.)
+	 */
+	public B next() throws RollbackException;
+
+	/**
+	 * Releases the database resources held by this cursor.  Closing a cursor
+	 * that is already closed (or that has reached the end) does nothing.
+	 */
+	public void close();
+}
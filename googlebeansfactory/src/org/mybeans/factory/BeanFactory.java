@@ -5,6 +5,9 @@
 
 package org.mybeans.factory;
 
+import java.io.InputStream;
+import java.util.Map;
+
 /**
  * This is the public interface for bean factories that use database
  * tables to store JavaBeans.
@@ -241,6 +244,24 @@ public interface BeanFactory<B> {
 	 */
 	public B create(Object... primaryKeyValues) throws RollbackException;
 
+	/**
+	 * Creates new beans in the database with the same primary keys and property values as the given beans,
+	 * as if each were created with <tt>create()</tt> and then its values copied in with <tt>copyInto()</tt>,
+	 * but writing many beans at a time.  Use this to load large numbers of beans.
+	 *
+	 * Either all or none of the beans are created.  (If this call is made in an enclosing transaction,
+	 * they are created if the transaction commits.)  The given beans are not tracked, so changes made
+	 * to them after this call are not written to the database.
+	 *
+	 * @param beans the beans to create.
+	 * @throws DuplicateKeyException if a bean with one of the given primary keys is already in the database
+	 * (or two of the given beans have the same primary key).
+	 * This is a (subclass of) RollbackException, so any enclosing transaction is rolled back.
+	 * @throws RollbackException if the transaction cannot be completed for any one of a number of reasons,
+	 * including SQLExceptions, deadlocks, errors accessing the beans, or a <code>null</code> bean.
+	 */
+	public void createAll(B[] beans) throws RollbackException;
+
     /**
      * Deletes from the database the bean with the given primary key.
      *
@@ -254,6 +275,61 @@ public interface BeanFactory<B> {
      */
     public void delete(Object... primaryKeyValues) throws RollbackException;
 
+    /**
+     * Writes the given bean's property values into the database, creating the bean if there is no bean
+     * with its primary key or else updating the existing one.  This is the same as looking up the bean,
+     * creating it if it's not found, and then copying the given bean's values into it with <tt>copyInto()</tt>,
+     * but it's done with a single statement (if the database supports it).
+     *
+     * If this call is made in an enclosing transaction, the change is rolled back if the transaction rolls back.
+     * If the transaction is tracking a bean with the same primary key, the values are copied into the tracked bean.
+     * The given bean is not tracked, so changes made to it after this call are not written to the database.
+     *
+     * @param bean the bean whose values are written.
+     * @throws RollbackException if the transaction cannot be completed for any one of a number of reasons,
+     * including SQLExceptions, deadlocks, errors accessing the bean, or a <code>null</code> bean.
+     */
+    public void upsert(B bean) throws RollbackException;
+
+    /**
+     * Deletes from the database all the beans that match the given constraints.
+     * The constraints are the same as for <code>match()</code>, except that paging and ordering
+     * constraints are not allowed.  The beans are deleted without being read from the database
+     * (with a single <code>DELETE</code> statement, if the database supports it), and any of them
+     * tracked by the current transaction are no longer tracked.
+     *
+     * @param constraints zero or more contraints, all of which must be <code>true</code> for each bean
+     * deleted.  If there are no constraints, all the beans are deleted.
+     * @return the number of beans deleted.
+     * @throws RollbackException if the constraints are not valid or if there is an error accessing the database,
+     *     including IOException or deadlock.
+     */
+    public int deleteWhere(MatchArg... constraints) throws RollbackException;
+
+    /**
+     * Sets the given properties of all the beans that match the given constraints.
+     * The constraints are the same as for <code>match()</code>, except that paging and ordering
+     * constraints are not allowed.  The beans are changed without being read from the database
+     * (with a single <code>UPDATE</code> statement, if the database supports it), and any of them
+     * tracked by the current transaction are given the new values.
+     * <p>
+     * For example:
+     * <p><blockquote><pre>
+     *     Map&lt;String,Object&gt; set = new HashMap&lt;String,Object&gt;();
+     *     set.put("password",null);
+     *     int num = userFactory.updateWhere(set,MatchArg.lessThan("lastLogin",cutoff));
+     * </pre></blockquote>
+     *
+     * @param set maps the names of the properties to be set to their new values.  Primary key
+     * properties cannot be set.
+     * @param constraints zero or more contraints, all of which must be <code>true</code> for each bean
+     * changed.  If there are no constraints, all the beans are changed.
+     * @return the number of beans that matched the constraints.
+     * @throws RollbackException if the properties, values or constraints are not valid or if there is an error
+     *     accessing the database, including IOException or deadlock.
+     */
+    public int updateWhere(Map<String,Object> set, MatchArg... constraints) throws RollbackException;
+
 	/**
 	 * Tests two beans to see whether all the property values are the same.
 	 *
@@ -307,6 +383,26 @@ public interface BeanFactory<B> {
      */
     public B lookup(Object... primaryKeyValues) throws RollbackException;
 
+    /**
+     * Looks up many beans by their primary keys.  This is the same as calling <code>lookup()</code>
+     * for each key, but the beans are fetched with a few queries rather than one per key.
+     * (Beans already tracked by the enclosing transaction are not fetched again.)
+     * <p>
+     * For example:
+     * <p><blockquote><pre>
+     *     User[] users = userFactory.lookupAll(new Object[] { "alice" }, new Object[] { "bob" });
+     * </pre></blockquote>
+     *
+     * @param primaryKeyValues for each bean, the values of the properties that comprise its primary key.
+     * @return the beans, in the order of the given keys.  If there is no bean with a key,
+     * then <code>null</code> is in its place.
+     * @throws ReferencedBeanException if a looked up bean references another bean that is not stored in the database.
+     * This is a (subclass of) RollbackException, so any enclosing transaction is rolled back.
+     * @throws RollbackException if there is an error accessing the database,
+     * including IOException or deadlock.
+     */
+    public B[] lookupAll(Object[]... primaryKeyValues) throws RollbackException;
+
     /**
      * Searches the database for beans matching the given constraints.
      * Constraints are specified with <code>MatchArg</code>s which limit properties to
@@ -316,6 +412,10 @@ public interface BeanFactory<B> {
      *
      * If no constraints are specified, all the beans in the database (table) are returned.
      *
+     * A page of the matching beans may be requested with the <code>MatchArg.limit()</code>,
+     * <code>MatchArg.offset()</code> and <code>MatchArg.afterKey()</code> constraints,
+     * in which case the beans are returned in primary key order.
+     *
      * @param constraints zero or more contraints, all of which must be <code>true</code> for each bean
      * returned by this call.
      * @return an array of beans that match the given constraints.  If no beans match the
@@ -326,4 +426,85 @@ public interface BeanFactory<B> {
      * including IOException or deadlock.
      */
     public B[] match(MatchArg... constraints) throws RollbackException;
+
+    /**
+     * Searches the database for beans matching the given constraints, as with <tt>match(MatchArg...)</tt>,
+     * but only fetches the properties named by the given projection (and the primary key properties).
+     * The other properties of the returned beans are left as set by the bean's constructor.
+     * Use this to avoid reading large properties (such as <code>byte[]</code> or arrays) when they are not needed.
+     *
+     * As they are incomplete, the returned beans are not tracked, even if this call is made in an
+     * enclosing transaction, so changes made to them are not written to the database.
+     * (If the enclosing transaction is already tracking a matching bean, that bean is returned instead.)
+     *
+     * @param projection the properties to fetch.
+     * @param constraints zero or more contraints, all of which must be <code>true</code> for each bean
+     * returned by this call.
+     * @return an array of (partially populated) beans that match the given constraints.
+     * @throws RollbackException if there is an error accessing the database,
+     * including IOException or deadlock, or if the projection names a property the bean does not have.
+     */
+    public B[] match(Projection projection, MatchArg... constraints) throws RollbackException;
+
+    /**
+     * Searches the database for beans matching the given constraints, as with <tt>match()</tt>,
+     * but returns a cursor that makes the matching beans a few at a time, as they are needed,
+     * rather than an array holding all of them.  Use this when there could be too many matching beans
+     * to hold in memory at once.
+     *
+     * When called outside of a transaction, the cursor reads the matching beans as it is advanced
+     * and holds a database connection until it reaches the end or is closed, so it
+     * should always be closed in a <code>finally</code> clause.  Within a read-only transaction,
+     * which doesn't track beans, the cursor also reads the beans as it is advanced.  Within other
+     * transactions, the returned beans are tracked as with <tt>match()</tt> (and so remain in
+     * memory until the transaction commits or rolls back).
+     *
+     * @param constraints zero or more contraints, all of which must be <code>true</code> for each bean
+     * returned by the cursor.
+     * @return a cursor over the beans that match the given constraints.
+     * @throws RollbackException if there is an error accessing the database,
+     * including IOException or deadlock.
+     */
+    public BeanCursor<B> iterate(MatchArg... constraints) throws RollbackException;
+
+    /**
+     * Opens a stream from which the value of a <code>byte[]</code> property of the bean
+     * with the given primary key can be read, without making the bean (or copying the
+     * whole value into a <code>byte[]</code>).  Use this, together with <tt>match(Projection,MatchArg...)</tt>,
+     * for large values such as images.
+     *
+     * When called outside of a transaction, the stream holds a database connection until it
+     * is closed, so it should always be closed in a <code>finally</code> clause.  Within a transaction,
+     * if the bean is being tracked, the stream reads the tracked bean's (possibly changed) value.
+     *
+     * @param propertyName the name of the <code>byte[]</code> property.
+     * @param primaryKeyValues the values of the properties that comprise the primary key for
+     * the bean whose property value is read.
+     * @return a stream of the property's value, or <code>null</code> if there is no such bean or
+     * if the value is <code>null</code>.
+     * @throws RollbackException if there is an error accessing the database,
+     * including IOException or deadlock, or if the property is not a (non-primary key) <code>byte[]</code> property.
+     */
+    public InputStream openInputStream(String propertyName, Object... primaryKeyValues) throws RollbackException;
+
+    /**
+     * Sets the value of a <code>byte[]</code> property of the bean with the given primary key
+     * to the bytes read from the given stream, without making the bean (or first copying the
+     * value into a <code>byte[]</code>, if the database supports streaming it in).
+     * The stream is not closed by this method.
+     *
+     * If this call is made in an enclosing transaction, the change is rolled back if the transaction rolls back.
+     * If the bean is being tracked by the transaction, the new value is read into memory and set
+     * into the tracked bean (to be written out at commit time, as with any other change).
+     *
+     * @param propertyName the name of the <code>byte[]</code> property.
+     * @param in the stream from which the new value is read.
+     * @param length the number of bytes to read from the stream.
+     * @param primaryKeyValues the values of the properties that comprise the primary key for
+     * the bean whose property value is set.
+     * @throws RollbackException if there is no such bean, if there is an error accessing the database,
+     * including IOException or deadlock, if the stream has fewer than <code>length</code> bytes,
+     * or if the property is not a (non-primary key) <code>byte[]</code> property.
+     */
+    public void updateFromStream(String propertyName, InputStream in, int length, Object... primaryKeyValues) throws RollbackException;
 }
@@ -407,4 +407,66 @@ public abstract class BeanTable<B> {
      * @param enable <tt>true</tt> to clean up idle database connections, <tt>false</tt> to disable.
      */
     public abstract void setIdleConnectionCleanup(boolean enable);
+
+    /**
+     * Limits the number of database connections used to access this table.  (Tables using the
+     * same database share these connections, so the limits apply to all of them.)  When the
+     * maximum number of connections are in use, callers wait for a connection to be released.
+     * If none is released within the acquire timeout, the call fails with a <tt>RollbackException</tt>
+     * rather than opening another connection.
+     * Some implementations do not use database connections, in which case this method does nothing.
+     * @param maxConnections the maximum number of connections to have open at one time.
+     * @param minIdleConnections the number of idle connections to keep open (even when idle connection cleanup is enabled).
+     * @param acquireTimeoutMillis the number of milliseconds to wait for a connection.
+     * @throws BeanFactoryException if there is an error connecting to the database.
+     */
+    public abstract void setConnectionLimits(int maxConnections, int minIdleConnections, long acquireTimeoutMillis);
+
+    /**
+     * Sets the number of rows fetched from the database at a time by cursors returned from
+     * <tt>BeanFactory.iterate()</tt>.  This is passed to the JDBC driver as a hint
+     * (see <tt>java.sql.Statement.setFetchSize()</tt>).  With MySQL, the default streams the rows
+     * one at a time (by passing <tt>Integer.MIN_VALUE</tt>, which is how the MySQL Connector/J
+     * driver is asked to stream rather than read the whole result), so a cursor's memory use
+     * doesn't grow with the number of rows it returns.  Otherwise the default, zero, uses the
+     * driver's default.
+     * Some implementations do not use JDBC, in which case this method does nothing.
+     * @param rows the number of rows to fetch at a time.
+     */
+    public abstract void setFetchSize(int rows);
+
+    /**
+     * Sets the maximum number of primary keys looked up with one query by
+     * <tt>BeanFactory.lookupAll()</tt> (and when fetching the beans referenced by a batch of beans).
+     * Larger batches mean fewer round trips but longer statements.  The default is 256.
+     * Some implementations look up beans without accessing a database, in which case this method does nothing.
+     * @param keys the number of keys to look up at a time.
+     */
+    public abstract void setLookupBatchSize(int keys);
+
+    /**
+     * Sets the number of auto increment primary key values reserved from the database at a time
+     * by <tt>BeanFactory.create()</tt> (when called with no arguments).  Keys are then assigned
+     * from the reserved block, saving the database round trip to learn each generated key.
+     * The default, zero, lets the database assign each key.  If this is used, all programs creating
+     * beans in this table should use it (so keys the database assigns don't clash with reserved ones).
+     * Unused keys in a block are skipped.
+     * Blocks are reserved on a connection kept by the table for this (not counted against the pool's limit).
+     * Some implementations assign keys without accessing a database, in which case this method does nothing.
+     * @param ids the number of keys to reserve at a time.
+     */
+    public abstract void setIdBlockSize(int ids);
+
+    /**
+     * Sets how often the changes committed to this table are forced to disk (with <tt>fsync</tt>).
+     * Transactions committing at the same time share one write (and at most one force), but
+     * forcing to disk still makes commits slower, so this trades durability for throughput.
+     * With an interval of zero, each commit waits for its changes to be forced to disk.
+     * With a positive interval, changes are forced at most that often, so a crash may lose
+     * the changes committed in the last interval.  With a negative interval (the default),
+     * changes are never forced, and a crash may lose whatever the operating system hasn't written.
+     * Some implementations leave durability to the database server, in which case this method does nothing.
+     * @param millis the number of milliseconds between forcing changes to disk.
+     */
+    public abstract void setSyncInterval(long millis);
 }
@@ -6,8 +6,10 @@
 package org.mybeans.factory;
 
 import org.mybeans.factory.impl.BinaryMatchArg;
+import org.mybeans.factory.impl.ListMatchArg;
 import org.mybeans.factory.impl.LogicMatchArg;
 import org.mybeans.factory.impl.MatchOp;
+import org.mybeans.factory.impl.PageMatchArg;
 import org.mybeans.factory.impl.UnaryMatchArg;
 
 /**
@@ -24,6 +26,21 @@ public abstract class MatchArg {
 	
 	protected abstract MatchOp getOp();
 
+    /**
+     * Only matches beans whose primary key is after the given primary key (in primary key order).
+     * Pass the primary key values of the last bean of one page (with <tt>limit()</tt>)
+     * to get the next page.  For example:
+     * <p><blockquote><pre>
+     *     User[] page = userFactory.match(MatchArg.limit(20));
+     *     ...
+     *     Object[] lastKey = userFactory.getPrimaryKeyValues(page[page.length-1]);
+     *     page = userFactory.match(MatchArg.afterKey(lastKey),MatchArg.limit(20));
+     * </pre></blockquote>
+     */
+    public static MatchArg afterKey(Object...primaryKeyValues) {
+    	return new PageMatchArg(MatchOp.AFTER_KEY,primaryKeyValues);
+    }
+
     public static MatchArg and(MatchArg...constraints) {
     	return new LogicMatchArg(MatchOp.AND,constraints);
     }
@@ -60,6 +77,18 @@ public abstract class MatchArg {
     	return new BinaryMatchArg(keyName,MatchOp.GREATER_OR_EQUALS,matchValue);
     }
 
+    /**
+     * Matches beans whose property is equal to one of the given values.  For example:
+     * <p><blockquote><pre>
+     *     User[] array = userFactory.match(MatchArg.in("userName","alice","bob","carol"));
+     * </pre></blockquote>
+     * The values cannot be <code>null</code> (use <tt>equals()</tt> to match <code>null</code>).
+     * If no values are given, no beans match.
+     */
+    public static MatchArg in(String keyName, Object...matchValues) {
+    	return new ListMatchArg(keyName,MatchOp.IN,matchValues);
+    }
+
     public static MatchArg lessThan(String keyName, Object matchValue) {
     	return new BinaryMatchArg(keyName,MatchOp.LESS,matchValue);
     }
@@ -68,6 +97,16 @@ public abstract class MatchArg {
     	return new BinaryMatchArg(keyName,MatchOp.LESS_OR_EQUALS,matchValue);
     }
 
+    /**
+     * Limits the match to at most <tt>maxBeans</tt> beans.  Matches with paging
+     * constraints (<tt>limit()</tt>, <tt>offset()</tt> or <tt>afterKey()</tt>) return beans
+     * in primary key order.  Paging constraints must be given at the top level (not
+     * inside <tt>and()</tt> or <tt>or()</tt>).
+     */
+    public static MatchArg limit(int maxBeans) {
+    	return new PageMatchArg(MatchOp.LIMIT,maxBeans);
+    }
+
     public static MatchArg max(String keyName) {
     	return new UnaryMatchArg(keyName,MatchOp.MAX);
     }
@@ -76,14 +115,61 @@ public abstract class MatchArg {
     	return new UnaryMatchArg(keyName,MatchOp.MIN);
     }
     
+    /**
+     * Matches beans whose property is not equal to the given value.  As with <tt>equals()</tt>,
+     * <code>null</code> is a value like any other: beans whose property is <code>null</code> match
+     * unless the given value is <code>null</code>.
+     */
     public static MatchArg notEquals(String keyName, Object matchValue) {
     	return new BinaryMatchArg(keyName,MatchOp.NOT_EQUALS,matchValue);
     }
 
+    /**
+     * Matches beans whose property is not equal to any of the given values (including beans
+     * whose property is <code>null</code>).  The values cannot be <code>null</code>.
+     * See <tt>in()</tt>.
+     */
+    public static MatchArg notIn(String keyName, Object...matchValues) {
+    	return new ListMatchArg(keyName,MatchOp.NOT_IN,matchValues);
+    }
+
+    /**
+     * Skips the first <tt>skip</tt> matching beans (in primary key order).  The skipped
+     * beans are still read by the database, so <tt>afterKey()</tt> is faster for paging
+     * through many beans.
+     */
+    public static MatchArg offset(int skip) {
+    	return new PageMatchArg(MatchOp.OFFSET,skip);
+    }
+
     public static MatchArg or(MatchArg...constraints) {
     	return new LogicMatchArg(MatchOp.OR,constraints);
     }
 
+    /**
+     * Returns the matching beans in increasing order of the given property.
+     * If more than one ordering is given, the first one given is the most significant.
+     * Beans that are otherwise equal are returned in primary key order.
+     * Null property values come before all others.  Ordering constraints must be given at
+     * the top level (not inside <tt>and()</tt> or <tt>or()</tt>).
+     * Use with <tt>limit()</tt> and <tt>offset()</tt> to get one page of ordered beans.
+     * For example, the 20 newest users:
+     * <p><blockquote><pre>
+     *     User[] newest = userFactory.match(MatchArg.orderByDescending("created"),MatchArg.limit(20));
+     * </pre></blockquote>
+     */
+    public static MatchArg orderBy(String keyName) {
+    	return new PageMatchArg(MatchOp.ORDER_BY,keyName);
+    }
+
+    /**
+     * Returns the matching beans in decreasing order of the given property.
+     * (Null property values come after all others.)  See <tt>orderBy()</tt>.
+     */
+    public static MatchArg orderByDescending(String keyName) {
+    	return new PageMatchArg(MatchOp.ORDER_BY_DESCENDING,keyName);
+    }
+
     public static MatchArg startsWith(String keyName, String beginning) {
     	return new BinaryMatchArg(keyName,MatchOp.STARTS_WITH,beginning);
     }
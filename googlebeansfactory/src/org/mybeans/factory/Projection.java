@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory;
+
+/**
+ * The properties to fetch when matching beans.  Use with the
+ * <tt>BeanFactory.match(Projection,MatchArg...)</tt> method.
+ * <p>
+ * For example:
+ * <p><blockquote><pre>
+ *     User[] array = userFactory.match(Projection.of("firstName","lastName"));
+ * </pre></blockquote>
+ * would return all users with only their primary key, first name and last name set.
+ * The other properties (say, a large <code>byte[]</code> photo) are not read from the database.
+ */
+public class Projection {
+	private String[] propertyNames;
+
+	private Projection(String[] propertyNames) {
+		this.propertyNames = propertyNames.clone();
+	}
+
+	/**
+	 * Returns a projection of the given properties.  (The primary key properties are
+	 * always fetched, so they need not be given.)
+	 * @param propertyNames the names of the properties to fetch.
+	 * @return the projection.
+	 */
+	public static Projection of(String...propertyNames) {
+		if (propertyNames == null) throw new NullPointerException("propertyNames");
+		return new Projection(propertyNames);
+	}
+
+	public String[] getPropertyNames() { return propertyNames.clone(); }
+}
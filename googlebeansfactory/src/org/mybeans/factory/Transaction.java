@@ -61,6 +61,18 @@ public class Transaction {
 		TranImpl.begin();
 	}
 
+	/**
+	 * Begins a new read-only transaction for this thread.  All reads in the transaction
+	 * see the same consistent snapshot of the data, but beans are not locked for update and
+	 * changes made to the beans are not written back.  Creating, deleting or otherwise changing
+	 * beans in a read-only transaction causes it to roll back.
+	 * @throws RollbackException if there is some reason the transaction could not be started.
+	 * One reason is if you are already in a transaction.
+	 */
+	public static void beginReadOnly() throws RollbackException {
+		TranImpl.beginReadOnly();
+	}
+
 	/**
 	 * Commits the work performed by this thread's currently running transaction.
 	 * @throws RollbackException if there is some reason the transaction could not be committed.
@@ -77,6 +89,14 @@ public class Transaction {
         return TranImpl.isActive();
 	}
 
+	/**
+	 * Tests whether this thread's currently running transaction is read-only.
+	 * @return true if this thread is in a transaction started with <tt>beginReadOnly()</tt>.
+	 */
+	public static boolean isReadOnly() {
+        return TranImpl.isReadOnly();
+	}
+
 	/**
 	 * Causes the work performed by the current thread's currently running transaction to be undone.
 	 * @throws AssertionError if not in a transaction.
@@ -5,16 +5,26 @@
 
 package org.mybeans.factory.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import org.mybeans.factory.BeanFactory;
 import org.mybeans.factory.BeanFactoryException;
+import org.mybeans.factory.MatchArg;
+import org.mybeans.factory.Projection;
 import org.mybeans.factory.RollbackException;
+import org.mybeans.factory.Transaction;
 import org.mybeans.nonmodifiable.NMDate;
 import org.mybeans.nonmodifiable.NMSQLDate;
 import org.mybeans.nonmodifiable.NMTime;
@@ -53,6 +63,13 @@ public abstract class AbstractFactory<B> implements BeanFactory<B> {
 	
 			for (Property property : properties) {
                 Object beanValue = getBeanValue(bean,property);
+                if (beanValue != null && property.getType() == byte[].class) {
+                	// Same bytes as DBValues.getBytes(), but without copying a (possibly large) value twice
+                	byte[] value = (byte[]) beanValue;
+                	md.update(Encode.getRawIntBytes(value.length));
+                	md.update(value);
+                	continue;
+                }
                 Object dbValue = DBValues.makeDBValue(property,beanValue);
                 byte[] bytes = DBValues.getBytes(dbValue);
                 md.update(bytes);
@@ -133,6 +150,89 @@ public abstract class AbstractFactory<B> implements BeanFactory<B> {
     	}
     }
     
+    /*
+     * This implementation creates each bean with create() and copies the other property values
+     * into it, all in one transaction.  Subclasses override it to write many rows at a time.
+     */
+    public void createAll(B[] beans) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            createAll(beans);
+            Transaction.commit();
+            return;
+        }
+
+        try {
+            if (beans == null) throw new NullPointerException("The \"beans\" argument is null");
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+
+        for (B bean : beans) {
+            copyInto(bean,create(getPrimaryKeyValues(bean)));
+        }
+    }
+
+    /*
+     * This implementation looks up the bean, creating it if it's not found, and copies the
+     * other property values into it.  Subclasses override it to do this with one statement.
+     */
+    public void upsert(B bean) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            upsert(bean);
+            Transaction.commit();
+            return;
+        }
+
+        Object[] primaryKeyValues = getPrimaryKeyValues(bean);  // throws RollbackException if bean is null
+        B dbBean = lookup(primaryKeyValues);
+        if (dbBean == null) dbBean = create(primaryKeyValues);
+        copyInto(bean,dbBean);
+    }
+
+    /*
+     * This implementation looks up the bean and reads the value from it.  Subclasses
+     * that can read the value from the database as a stream override it.
+     */
+    public InputStream openInputStream(String propertyName, Object... primaryKeyValues) throws RollbackException {
+        Property prop = getStreamProperty(propertyName);  // throws RollbackException in case of problems
+        B bean = lookup(primaryKeyValues);
+        if (bean == null) return null;
+
+        byte[] value = (byte[]) getBeanValue(bean,prop);
+        if (value == null) return null;
+        return new ByteArrayInputStream(value);
+    }
+
+    /*
+     * This implementation reads the stream into memory and sets the value into the (tracked) bean.
+     * Subclasses that can write a stream into the database override it.
+     */
+    public void updateFromStream(String propertyName, InputStream in, int length, Object... primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            updateFromStream(propertyName,in,length,primaryKeyValues);
+            Transaction.commit();
+            return;
+        }
+
+        Property prop = getStreamProperty(propertyName);  // throws RollbackException in case of problems
+        B bean = lookup(primaryKeyValues);
+        try {
+            if (bean == null) {
+                Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyProperties,primaryKeyValues);
+                throw new RollbackException("Couldn't find the row with this primary key: "+DBValues.toString(priKeyDBValues));
+            }
+            setBeanValue(bean,prop,readBytes(in,length));
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+    }
+
     // Non-public methods
 
     protected Object getBeanValue(Object bean, Property property) {
@@ -160,24 +260,195 @@ public abstract class AbstractFactory<B> implements BeanFactory<B> {
         return matchValue;
     }
 
+    public B[] lookupAll(Object[]... primaryKeyValues) throws RollbackException {
+        try {
+            if (primaryKeyValues == null) throw new NullPointerException("primaryKeyValues");
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+
+        List<PrimaryKey<B>> keys = new ArrayList<PrimaryKey<B>>(primaryKeyValues.length);
+        for (Object[] keyValues : primaryKeyValues) {
+            validatePrimaryKeyValues(keyValues);  // throws RollbackException if problems
+            keys.add(new PrimaryKey<B>(primaryKeyInfo,DBValues.makeDBValues(primaryKeyInfo.getProperties(),keyValues)));
+        }
+
+        // Each key is looked up once, even if it's given more than once
+        Map<PrimaryKey<B>,B> beans = lookupBeans(new LinkedHashSet<PrimaryKey<B>>(keys));
+
+        B[] answer = newArray(keys.size());
+        for (int i=0; i<answer.length; i++) {
+            answer[i] = beans.get(keys.get(i));
+        }
+        return answer;
+    }
+
+    /*
+     * Looks up the beans with the given primary keys.  Keys for which there is no bean
+     * are left out of the returned map.  This implementation calls lookup() once per key.
+     * Subclasses override it to fetch many beans with each query.
+     */
+    protected Map<PrimaryKey<B>,B> lookupBeans(Collection<PrimaryKey<B>> keys) throws RollbackException {
+        Map<PrimaryKey<B>,B> answer = new HashMap<PrimaryKey<B>,B>();
+        for (PrimaryKey<B> key : keys) {
+            Object[] priKeyBeanValues = BeanValues.makeBeanValues(primaryKeyProperties,key.getDBValues());
+            B bean = lookup(priKeyBeanValues);
+            if (bean != null) answer.put(key,bean);
+        }
+        return answer;
+    }
+
     protected B makeBean(Object[] dbValues) throws RollbackException {
-        Object beanValues[] = BeanValues.makeBeanValues(properties,dbValues);
-        Object[] priKeyBeanValues = new Object[primaryKeyInfo.getProperties().length];
+        return makeBean(dbValues,null);
+    }
+
+    /*
+     * Returns the properties to fetch for a projection: the primary key properties and then
+     * the given ones, in the order of the properties array.  If the projection names all the
+     * properties, the properties array itself is returned (so callers may test for a full
+     * projection with ==).
+     */
+    protected Property[] getProjectedProperties(Projection projection) throws RollbackException {
+        try {
+            if (projection == null) throw new NullPointerException("projection cannot be null");
+
+            boolean[] selected = new boolean[properties.length];
+            for (int i=0; i<primaryKeyProperties.length; i++) selected[i] = true;
+            for (String name : projection.getPropertyNames()) {
+                // propertyForName throws IllegalArgumentException if the property name is not valid
+                selected[Property.propertyForName(properties,name).getPropertyNum()] = true;
+            }
+
+            List<Property> answer = new ArrayList<Property>();
+            for (int i=0; i<properties.length; i++) {
+                if (selected[i]) answer.add(properties[i]);
+            }
+            if (answer.size() == properties.length) return properties;
+            return answer.toArray(new Property[answer.size()]);
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+            throw new AssertionError("rollbackAndThrow returned");
+        }
+    }
+
+    /*
+     * Builds the constraint tree for deleteWhere() and updateWhere().  These select the beans to
+     * change, so paging and ordering constraints are not allowed.
+     */
+    protected MatchArgTree buildWhereTree(MatchArg[] constraints) throws RollbackException {
+        MatchPage page = MatchPage.extract(properties,constraints);  // throws RollbackException in case of problems
+        if (page.isOrdered()) {
+            TranImpl.rollbackAndThrow(new IllegalArgumentException("Paging and ordering constraints cannot be used to select the beans to delete or update"));
+        }
+        return MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints()));
+    }
+
+    /*
+     * Validates the property names and new values given to updateWhere().  Returns the properties to set,
+     * in the order of the properties array (so the same set of properties always gives the same SQL),
+     * and puts their new database values into setDBValues (indexed by property number).
+     */
+    protected Property[] getSetProperties(Map<String,Object> set, Object[] setDBValues) throws RollbackException {
+        try {
+            if (set == null) throw new NullPointerException("set cannot be null");
+            if (set.size() == 0) throw new IllegalArgumentException("No properties to set");
+
+            boolean[] selected = new boolean[properties.length];
+            for (Map.Entry<String,Object> entry : set.entrySet()) {
+                // propertyForName throws IllegalArgumentException if the property name is not valid
+                Property prop = Property.propertyForName(properties,entry.getKey());
+                Object value = entry.getValue();
+                if (prop.isPrimaryKeyProperty()) throw new IllegalArgumentException("Primary key properties cannot be set: property="+prop.getName());
+                if (value == null && !prop.isNullable()) throw new IllegalArgumentException("Value for property "+prop.getName()+" cannot be null");
+                if (value != null && !prop.isInstance(value)) throw new IllegalArgumentException("Value for property "+prop.getName()+" is not instance of "+prop.getType()+".  Rather it is "+value.getClass());
+                selected[prop.getPropertyNum()] = true;
+                setDBValues[prop.getPropertyNum()] = DBValues.makeDBValue(prop,value);
+            }
+
+            List<Property> answer = new ArrayList<Property>();
+            for (int i=0; i<properties.length; i++) {
+                if (selected[i]) answer.add(properties[i]);
+            }
+            return answer.toArray(new Property[answer.size()]);
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+            throw new AssertionError("rollbackAndThrow returned");
+        }
+    }
+
+    /*
+     * Sets the given properties of a bean to the given database values (indexed by property number).
+     */
+    protected void setBeanValues(B bean, Property[] props, Object[] dbValues) throws RollbackException {
+        for (Property prop : props) {
+            setBeanValue(bean,prop,BeanValues.makeBeanValue(prop,dbValues[prop.getPropertyNum()],null));
+        }
+    }
+
+    protected B makeBean(Object[] dbValues, ReferencedBeans refBeans) throws RollbackException {
+        return makeBean(dbValues,refBeans,properties);
+    }
+
+    /*
+     * Makes a bean setting only the given properties (the others are left as set by the
+     * bean's constructor).  The dbValues of the other properties are ignored.
+     */
+    protected B makeBean(Object[] dbValues, ReferencedBeans refBeans, Property[] props) throws RollbackException {
+        // Bean values are only made for the given properties, so unwanted byte[] values aren't copied
+        Object[] priKeyBeanValues = new Object[primaryKeyProperties.length];
         for (int i=0; i<priKeyBeanValues.length; i++) {
-            priKeyBeanValues[i] = beanValues[i];
+            priKeyBeanValues[i] = BeanValues.makeBeanValue(primaryKeyProperties[i],dbValues[i],refBeans);
         }
 
         B bean = primaryKeyInfo.makeNewBean(priKeyBeanValues);
 
-        for (int i=priKeyBeanValues.length; i<beanValues.length; i++) {
-			Property prop = properties[i];
-			Object beanValue = beanValues[i];
+        for (Property prop : props) {
+        	if (prop.isPrimaryKeyProperty()) continue;
+			Object beanValue = BeanValues.makeBeanValue(prop,dbValues[prop.getPropertyNum()],refBeans);
 			setBeanValue(bean,prop,beanValue);
 		}
 
 		return bean;
 	}
 
+    /*
+     * Batched version of makeBean().  Rather than looking up referenced beans once per row,
+     * the primary keys referenced by all the rows are collected and each referenced factory
+     * is asked for all of its beans at once.  Rows referencing the same bean share it.
+     */
+    protected List<B> makeBeans(List<Object[]> dbValuesList) throws RollbackException {
+        return makeBeans(dbValuesList,properties);
+    }
+
+    protected List<B> makeBeans(List<Object[]> dbValuesList, Property[] props) throws RollbackException {
+        ReferencedBeans refBeans = null;
+        for (Property prop : props) {
+            if (!(prop instanceof ReferencedBeanProperty)) continue;
+            if (refBeans == null) refBeans = new ReferencedBeans();
+
+            ReferencedBeanProperty refProp = (ReferencedBeanProperty) prop;
+            for (Object[] dbValues : dbValuesList) {
+                Object[] dbValue = (Object[]) dbValues[prop.getPropertyNum()];
+                if (dbValue == null) continue;
+                if (!prop.isArray()) {
+                    refBeans.addKey(refProp,dbValue);
+                } else {
+                    for (Object refPriKeyDBValues : dbValue) {
+                        refBeans.addKey(refProp,(Object[]) refPriKeyDBValues);
+                    }
+                }
+            }
+        }
+
+        if (refBeans != null) refBeans.resolve();
+
+        List<B> answer = new ArrayList<B>(dbValuesList.size());
+        for (Object[] dbValues : dbValuesList) {
+            answer.add(makeBean(dbValues,refBeans,props));
+        }
+        return answer;
+    }
+
     protected Object[] makeDBValues(B bean) {
         Object[] dbValues = new Object[properties.length];
         for (int i=0; i<properties.length; i++) {
@@ -247,6 +518,41 @@ public abstract class AbstractFactory<B> implements BeanFactory<B> {
     }
 
 
+    /*
+     * Returns the property with the given name, which must be a non-primary key byte[] property
+     * (for openInputStream() and updateFromStream()).
+     */
+    protected Property getStreamProperty(String propertyName) throws RollbackException {
+        try {
+            // propertyForName throws IllegalArgumentException if the property name is not valid
+            Property prop = Property.propertyForName(properties,propertyName);
+            if (prop.getType() != byte[].class || prop.isPrimaryKeyProperty()) {
+                throw new IllegalArgumentException("Not a (non-primary key) byte[] property: "+propertyName);
+            }
+            return prop;
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+            throw new AssertionError("rollbackAndThrow returned");
+        }
+    }
+
+    /*
+     * Reads exactly length bytes from the stream.
+     */
+    protected static byte[] readBytes(InputStream in, int length) throws IOException {
+        if (in == null) throw new NullPointerException("in");
+        if (length < 0) throw new IllegalArgumentException("length cannot be negative: "+length);
+
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        while (pos < length) {
+            int num = in.read(bytes,pos,length-pos);
+            if (num < 0) throw new IOException("Stream ended after "+pos+" of "+length+" bytes");
+            pos += num;
+        }
+        return bytes;
+    }
+
     protected void setBeanValue(B bean, Property property, Object value) {
 		try {
 			Method setter = property.getSetter();
@@ -59,7 +59,7 @@ public class BeanValues extends Values {
         return v1.equals(v2);
     }
 
-    private static Object makeBeanArray(Property property, Object[] dbArray) throws RollbackException {
+    private static Object makeBeanArray(Property property, Object[] dbArray, ReferencedBeans refBeans) throws RollbackException {
         if (dbArray == null) return null;
 
         if (property.getType() == boolean[].class) {
@@ -100,7 +100,7 @@ public class BeanValues extends Values {
             if (property instanceof ReferencedBeanProperty) {
                 ReferencedBeanProperty refProp = (ReferencedBeanProperty) property;
                 Object[] refPriKeyDBValues = (Object[]) dbArray[i];
-                beanArray[i] = makeBeanRefBeanValue(refProp,refPriKeyDBValues);
+                beanArray[i] = makeBeanRefBeanValue(refProp,refPriKeyDBValues,refBeans);
             } else if (property instanceof EnumProperty){
             	EnumProperty enumProp = (EnumProperty) property;
             	beanArray[i] = enumProp.makeBeanValue((String) dbArray[i]);
@@ -111,15 +111,26 @@ public class BeanValues extends Values {
         return beanArray;
     }
 
-    private static Object makeBeanRefBeanValue(ReferencedBeanProperty refProp, Object[] refPriKeyDBValues) throws RollbackException {
+    private static Object makeBeanRefBeanValue(ReferencedBeanProperty refProp, Object[] refPriKeyDBValues, ReferencedBeans refBeans) throws RollbackException {
         if (refPriKeyDBValues == null) return null;
 
         AbstractFactory<?> refFactory = refProp.getFactory();
+
+        if (refBeans != null) {
+            // The referenced beans for the whole batch have already been looked up
+            Object refBean = refBeans.get(refProp,refPriKeyDBValues);
+            if (refBean != null) return refBean;
+        }
         Property[] refPriKeyProps = refFactory.primaryKeyProperties;
 
         Object[] refPriKeyBeanValues = new Object[refPriKeyDBValues.length];
         for (int i=0; i<refPriKeyBeanValues.length; i++) {
-            refPriKeyBeanValues[i] = makeBeanValue(refPriKeyProps[i],refPriKeyDBValues[i]);
+            refPriKeyBeanValues[i] = makeBeanValue(refPriKeyProps[i],refPriKeyDBValues[i],null);
+        }
+
+        if (refBeans != null) {
+            throw new ReferencedBeanException("Referenced bean does not exist: "+refFactory.beanClass.getSimpleName()+"("+toString(refPriKeyBeanValues)+")",
+            		null,null,refFactory.beanClass,refPriKeyBeanValues);
         }
 
         Object refBean = refFactory.lookup(refPriKeyBeanValues);
@@ -129,18 +140,18 @@ public class BeanValues extends Values {
         		null,null,refFactory.beanClass,refPriKeyBeanValues);
     }
 
-    private static Object makeBeanValue(Property property, Object dbValue) throws RollbackException {
+    public static Object makeBeanValue(Property property, Object dbValue, ReferencedBeans refBeans) throws RollbackException {
         if (dbValue == null) return null;
 
         if (property.isArray()) {
             Object[] dbArray = (Object[]) dbValue;
-            return makeBeanArray(property,dbArray);
+            return makeBeanArray(property,dbArray,refBeans);
         }
 
         if (property instanceof ReferencedBeanProperty) {
             ReferencedBeanProperty refProp = (ReferencedBeanProperty) property;
             Object[] refPriKeyDBValues = (Object[]) dbValue;
-            return makeBeanRefBeanValue(refProp,refPriKeyDBValues);
+            return makeBeanRefBeanValue(refProp,refPriKeyDBValues,refBeans);
         }
         
         if (property instanceof EnumProperty) {
@@ -154,10 +165,15 @@ public class BeanValues extends Values {
     }
 
     public static Object[] makeBeanValues(Property[] props, Object[] dbValues) throws RollbackException {
+        return makeBeanValues(props,dbValues,null);
+    }
+
+    public static Object[] makeBeanValues(Property[] props, Object[] dbValues, ReferencedBeans refBeans) throws RollbackException {
+        // If refBeans is non-null, referenced beans are taken from it rather than looked up one at a time
         Object[] beanValues = new Object[dbValues.length];
         for (int i=0; i<props.length; i++) {
             // System.out.println("BeanValues.makeBeanValues: "+props[i]+","+DBValues.toString(dbValues[i]));
-            beanValues[i] = makeBeanValue(props[i],dbValues[i]);
+            beanValues[i] = makeBeanValue(props[i],dbValues[i],refBeans);
         }
         return beanValues;
     }
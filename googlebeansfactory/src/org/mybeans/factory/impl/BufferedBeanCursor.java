@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.mybeans.factory.BeanCursor;
+import org.mybeans.factory.RollbackException;
+
+/**
+ * A <tt>BeanCursor</tt> that hands out beans from a buffer, refilling the buffer
+ * one chunk at a time by calling <tt>fetchChunk()</tt>.
+ *
+ * Instantiated directly, it iterates over the given list of beans.  Subclasses
+ * override <tt>fetchChunk()</tt> (and <tt>close()</tt> if they hold resources)
+ * to read beans from the database as the cursor is advanced.
+ */
+public class BufferedBeanCursor<B> implements BeanCursor<B> {
+	private List<B> buffer;
+	private int     pos    = 0;
+	private boolean closed = false;
+
+	public BufferedBeanCursor(List<B> initialBeans) {
+		buffer = initialBeans;
+	}
+
+	public boolean hasNext() throws RollbackException {
+		while (buffer == null || pos >= buffer.size()) {
+			if (closed) return false;
+
+			buffer = null;  // Let the old chunk be garbage collected while the next is fetched
+			pos = 0;
+			try {
+				buffer = fetchChunk();
+			} catch (RollbackException e) {
+				close();
+				throw e;
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+
+			if (buffer == null) {
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public B next() throws RollbackException {
+		if (!hasNext()) throw new NoSuchElementException();
+		B bean = buffer.get(pos);
+		buffer.set(pos,null);
+		pos++;
+		return bean;
+	}
+
+	public void close() {
+		closed = true;
+		buffer = null;
+	}
+
+	protected boolean isClosed() { return closed; }
+
+	/*
+	 * Returns the next chunk of beans, or null if there are no more.
+	 * (This implementation has no more beans once the initial list is used up.)
+	 */
+	protected List<B> fetchChunk() throws RollbackException {
+		return null;
+	}
+}
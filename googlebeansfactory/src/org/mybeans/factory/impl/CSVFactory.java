@@ -7,24 +7,40 @@ package org.mybeans.factory.impl;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.mybeans.factory.BeanCursor;
 import org.mybeans.factory.BeanFactoryException;
 import org.mybeans.factory.DuplicateKeyException;
 import org.mybeans.factory.MatchArg;
+import org.mybeans.factory.Projection;
 import org.mybeans.factory.RollbackException;
 import org.mybeans.factory.Transaction;
 import org.mybeans.nonmodifiable.NMDate;
@@ -32,38 +48,101 @@ import org.mybeans.nonmodifiable.NMSQLDate;
 import org.mybeans.nonmodifiable.NMTime;
 
 public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener {
+	private static final int CURSOR_CHUNK_SIZE = 256;  // Max beans made by each step of a cursor
 
-	private static ReentrantLock tableLock = new ReentrantLock();
-    private static ArrayList<CSVFactory<?>> involvedCSVFactories = null;
+	private static final long DEADLOCK_CHECK_INTERVAL = 50;  // Milliseconds between deadlock checks while waiting out of order
+	private static final long MIN_CHECKPOINT_LOG_SIZE = 1024*1024;  // Bytes of log below which there's no checkpoint
+
+	// Records in the log file: a row inserted or updated (with all its values), a row
+	// deleted (with its primary key values), and the end of a committed transaction
+	private static final String LOG_PUT    = "+";
+	private static final String LOG_DELETE = "-";
+	private static final String LOG_COMMIT = "*";
+
+	// Tables are locked in decreasing lockOrder, so a table is locked before the tables it
+	// references (which are made first).  See lockTable().
+	private static AtomicInteger nextLockOrder = new AtomicInteger();
+	private static ThreadLocal<ArrayList<CSVFactory<?>>> threadInvolvedCSVFactories = new ThreadLocal<ArrayList<CSVFactory<?>>>();
+
+	// The table each thread waiting for a table lock is waiting for (used to find deadlocks)
+	private static ConcurrentHashMap<Thread,CSVFactory<?>> waitingFor = new ConcurrentHashMap<Thread,CSVFactory<?>>();
+
+	// The committed rows of every table.  The rows of a table are never changed once committed:
+	// each commit that changes them makes a new version (sharing the unchanged rows with the
+	// old one) and replaces this map (under commitLock) with one that has the new version.  A read-only transaction reads the rows in the map as it
+	// was when the transaction first used a CSV table, so it sees a consistent snapshot of all
+	// the tables without locking any of them.
+	private static Object commitLock = new Object();
+	private static volatile Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>> committedRows = new HashMap<CSVFactory<?>,PersistentTreeMap<?,Object[]>>();
+	private static ThreadLocal<Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>>> threadSnapshot = new ThreadLocal<Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>>>();
+
+	private static Timer syncTimer = null;  // Forces logs to disk at the end of their sync intervals (made when first needed)
+
+	// Held by transactions that may change the table (read-only transactions don't lock)
+	private TableLock tableLock = new TableLock();
+	private int lockOrder = nextLockOrder.getAndIncrement();
 
 	// Instance variables protected by tableLock
-	private Map<PrimaryKey<B>,Object[]> dbBeans = new TreeMap<PrimaryKey<B>,Object[]>();
-	private Map<PrimaryKey<B>,BeanTrackerRec<B>> changedBeans = null;
+	private volatile PersistentTreeMap<PrimaryKey<B>,Object[]> dbBeans = new PersistentTreeMap<PrimaryKey<B>,Object[]>();  // The latest committed rows
+	private Map<PrimaryKey<B>,BeanTrackerRec<B>> changedBeans = null;  // Never used by read-only transactions
 	private long maxId = 0;
-
-	// Instance variables initialized by constructor and then protected by tableLock
+	private Map<PrimaryKey<B>,Object[]> unloggedRows = null;  // Committed, but not yet in the log (null values for deleted rows)
+
+	// Instance variables protected by logLock, which committing transactions hold (without
+	// tableLock) while waiting for their log records to be written.  See writeLog().
+	private ReentrantLock    logLock         = new ReentrantLock();
+	private Condition        logWritten      = logLock.newCondition();
+	private StringBuffer     logBuffer       = new StringBuffer();  // Records appended but not yet written
+	private long             appendedCommits = 0;
+	private long             writtenCommits  = 0;
+	private boolean          logWriting      = false;  // Some thread is writing records from logBuffer (or the timer is forcing the log)
+	private boolean          syncScheduled   = false;
+	private FileOutputStream logStream       = null;
+
+	private volatile long syncInterval = -1;  // Milliseconds between forcing the log to disk (0 for every commit, -1 for never)
+	private volatile long lastSyncTime = 0;
+	private volatile boolean syncFailed = false;  // The timer's last force failed, so the next commit must force
+
+	// Held while checkpointing, which writes the CSV file without holding tableLock.  See checkpoint().
+	private ReentrantLock checkpointLock = new ReentrantLock();
+
+	// Instance variables initialized by constructor and then protected by checkpointLock
     private int backupNumber;
     private List<Integer> backupNums;
 
 	// Instance variables initialized by constructor
 	private File csvFile;
+	private File logFile;
+	private File oldLogFile;
 	private int maxBackups;
     private String backupFileNamePrefix;
 
     // Other instance variables
     private Writer debug = null;
 
-	public CSVFactory(Class<B> beanClass, File csvFile, int maxBackups, String[] primaryKeyNames, AbstractFactory<?>[] referencedFactories) {
+	public CSVFactory(Class<B> beanClass, File csvFile, int maxBackups, long syncInterval, String[] primaryKeyNames, AbstractFactory<?>[] referencedFactories) {
 		super(beanClass,primaryKeyNames,referencedFactories);
 		this.csvFile = csvFile;
+		this.logFile = getLogFile(csvFile);
+		this.oldLogFile = getOldLogFile(csvFile);
 		this.maxBackups = maxBackups;
+		// (Set before replayLog(), whose checkpoint must be forced to disk before the logs are deleted)
+		this.syncInterval = syncInterval;
 		checkFileColumns(beanClass);
 		initDateFormats();
 		loadFile();
 		initBackupFileNameInfo();
+		replayLog();
+
+		synchronized (commitLock) {
+			Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>> newCommittedRows = new HashMap<CSVFactory<?>,PersistentTreeMap<?,Object[]>>(committedRows);
+			newCommittedRows.put(this,dbBeans);
+			committedRows = newCommittedRows;
+		}
 	}
 
     public B create(Object...primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
         if (!Transaction.isActive()) {
             // No big performance benefit in this implementation to not using transactions...
             Transaction.begin();
@@ -111,21 +190,43 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         B answer = newBean(priKeyDBValues);
         changedBeans.put(key,new BeanTrackerRec<B>(key,answer,null));
 
-        if (!autoIncrement && primaryKeyInfo.getProperties().length == 1) {
-            if (primaryKeyValues[0] instanceof Integer) {
-                int id = (Integer) primaryKeyValues[0];
-                if (id > maxId) maxId = id;
-            }
-            if (primaryKeyValues[0] instanceof Long) {
-                long id = (Long) primaryKeyValues[0];
-                if (id > maxId) maxId = id;
-            }
-        }
+        if (!autoIncrement) updateMaxId(priKeyDBValues);
 
         return answer;
     }
 
+    public void upsert(B bean) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            upsert(bean);
+            Transaction.commit();
+            return;
+        }
+
+        Object[] primaryKeyValues = getPrimaryKeyValues(bean);  // throws RollbackException if bean is null
+        validatePrimaryKeyValues(primaryKeyValues);
+
+        lockTable();
+
+        Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+        PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues);
+        BeanTrackerRec<B> rec = changedBeans.get(key);
+        if (rec != null && rec.getBean() != null) {
+            copyInto(bean,rec.getBean());
+            return;
+        }
+
+        // Tracked as if looked up (or created, if not in the DB), so the values are written at commit time
+        B trackedBean = newBean(priKeyDBValues);
+        copyInto(bean,trackedBean);
+        changedBeans.put(key,new BeanTrackerRec<B>(key,trackedBean,dbBeans.get(key)));
+
+        updateMaxId(priKeyDBValues);
+    }
+
     public void delete(Object...primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
         if (!Transaction.isActive()) {
             // No big performance benefit in this implementation to not using transactions...
             Transaction.begin();
@@ -155,10 +256,92 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         changedBeans.put(key,rec);
     }
 
+    public int deleteWhere(MatchArg...constraints) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            int answer = deleteWhere(constraints);
+            Transaction.commit();
+            return answer;
+        }
+
+        MatchArgTree argTree = buildWhereTree(constraints);
+
+    	fixMaxMin(argTree);  // Calls lockTable() if necessary
+
+        lockTable();
+
+        // The rows are tested without making beans for them.  (Tracked beans are tested with their current values.)
+        List<PrimaryKey<B>> deletedKeys = new ArrayList<PrimaryKey<B>>();
+        for (BeanTrackerRec<B> rec : changedBeans.values()) {
+        	B changedBean = rec.getBean();
+        	if (changedBean != null && argTree.satisfied(makeDBValues(changedBean))) {
+        		deletedKeys.add(rec.getKey());
+        	}
+        }
+
+        for (Map.Entry<PrimaryKey<B>,Object[]> entry : dbBeans.entrySet()) {
+            if (!changedBeans.containsKey(entry.getKey()) && argTree.satisfied(entry.getValue())) {
+            	deletedKeys.add(entry.getKey());
+            }
+        }
+
+        // As in delete(), deleted beans are tracked as "null" until transaction commit
+        for (PrimaryKey<B> key : deletedKeys) {
+        	changedBeans.put(key,new BeanTrackerRec<B>(key,null,null));
+        }
+        return deletedKeys.size();
+    }
+
+    public int updateWhere(Map<String,Object> set, MatchArg...constraints) throws RollbackException {
+        TranImpl.checkWritable();  // throws RollbackException if in a read-only transaction
+        if (!Transaction.isActive()) {
+            Transaction.begin();
+            int answer = updateWhere(set,constraints);
+            Transaction.commit();
+            return answer;
+        }
+
+        Object[] setDBValues = new Object[properties.length];
+        Property[] setProps = getSetProperties(set,setDBValues);
+        MatchArgTree argTree = buildWhereTree(constraints);
+
+    	fixMaxMin(argTree);  // Calls lockTable() if necessary
+
+        lockTable();
+
+        // The changes are written at commit, which works from the tracked beans, so beans are
+        // made for the matching rows (as in doMatch()) and given the new values
+        List<B> changedBeanList = new ArrayList<B>();
+        for (BeanTrackerRec<B> rec : changedBeans.values()) {
+        	B changedBean = rec.getBean();
+        	if (changedBean != null && argTree.satisfied(makeDBValues(changedBean))) {
+        		changedBeanList.add(changedBean);
+        	}
+        }
+
+        List<Integer> newBeanPositions = new ArrayList<Integer>();
+        List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+        for (Map.Entry<PrimaryKey<B>,Object[]> entry : dbBeans.entrySet()) {
+            if (!changedBeans.containsKey(entry.getKey()) && argTree.satisfied(entry.getValue())) {
+                newBeanPositions.add(changedBeanList.size());
+                changedBeanList.add(null);
+                newDBValuesList.add(entry.getValue());
+            }
+        }
+
+        makeTrackedBeans(changedBeanList,newBeanPositions,newDBValuesList,properties);
+
+        for (B bean : changedBeanList) {
+        	setBeanValues(bean,setProps,setDBValues);
+        }
+        return changedBeanList.size();
+    }
+
     public int getBeanCount() throws RollbackException {
         if (!Transaction.isActive()) {
             // No big performance benefit in this implementation to not using transactions...
-            Transaction.begin();
+            Transaction.beginReadOnly();
             int answer = getBeanCount();
             Transaction.commit();
             return answer;
@@ -166,12 +349,12 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 
         lockTable();
 
-        int answer = dbBeans.size();
+        int answer = rows().size();
 
-        for (Object key : changedBeans.keySet()) {
-            BeanTrackerRec<B> rec = changedBeans.get(key);
+        for (Object key : trackedBeans().keySet()) {
+            BeanTrackerRec<B> rec = trackedBeans().get(key);
             B bean = rec.getBean();
-            Object[] values = dbBeans.get(key);
+            Object[] values = rows().get(key);
 
             if (bean == null && values != null) {
                 // This transaction removed the bean
@@ -192,7 +375,7 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 	public B lookup(Object...primaryKeyValues) throws RollbackException {
 		if (!Transaction.isActive()) {
 			// No big performance benefit in this implementation to not using transactions...
-			Transaction.begin();
+			Transaction.beginReadOnly();
 			B answer = lookup(primaryKeyValues);
 			Transaction.commit();
 			return answer;
@@ -204,36 +387,104 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 
         Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
         PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues);
-        BeanTrackerRec<B> rec = changedBeans.get(key);
+        BeanTrackerRec<B> rec = trackedBeans().get(key);
         if (rec != null) return rec.getBean();
 
         // If we got here, we're not tracking this key, so let's check the DB
-        Object[] dbValues = dbBeans.get(key);
+        Object[] dbValues = rows().get(key);
         if (dbValues == null) return null;
 
         B answer = makeBean(dbValues);
+        if (TranImpl.isReadOnly()) return answer;  // Beans are not tracked by read-only transactions
         rec = new BeanTrackerRec<B>(key,answer,dbValues);
         changedBeans.put(key,rec);
         return answer;
 	}
 
+    /*
+     * Looks up all the keys with one lockTable(), taking tracked beans from changedBeans
+     * and the others straight from dbBeans (making their beans as one batch).
+     */
+    protected Map<PrimaryKey<B>,B> lookupBeans(Collection<PrimaryKey<B>> keys) throws RollbackException {
+        if (!Transaction.isActive()) {
+            Transaction.beginReadOnly();
+            Map<PrimaryKey<B>,B> answer = lookupBeans(keys);
+            Transaction.commit();
+            return answer;
+        }
+
+        lockTable();
+
+        Map<PrimaryKey<B>,B> answer = new HashMap<PrimaryKey<B>,B>();
+        List<PrimaryKey<B>> newKeys = new ArrayList<PrimaryKey<B>>();
+        List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+        for (PrimaryKey<B> key : keys) {
+            BeanTrackerRec<B> rec = trackedBeans().get(key);
+            if (rec != null) {
+                // A null bean means this transaction deleted it
+                if (rec.getBean() != null) answer.put(key,rec.getBean());
+                continue;
+            }
+
+            Object[] dbValues = rows().get(key);
+            if (dbValues != null) {
+                newKeys.add(key);
+                newDBValuesList.add(dbValues);
+            }
+        }
+
+        List<B> newBeans = makeBeans(newDBValuesList);
+        for (int i=0; i<newBeans.size(); i++) {
+            // (A bean referencing another of the keys may have already looked that one up)
+            PrimaryKey<B> key = newKeys.get(i);
+            BeanTrackerRec<B> rec = trackedBeans().get(key);
+            if (rec == null) {
+                rec = new BeanTrackerRec<B>(key,newBeans.get(i),newDBValuesList.get(i));
+                if (!TranImpl.isReadOnly()) changedBeans.put(key,rec);
+            }
+            answer.put(key,rec.getBean());
+        }
+        return answer;
+    }
+
     public B[] match(MatchArg...constraints) throws RollbackException {
         if (!Transaction.isActive()) {
             // No big performance benefit in this implementation to not using transactions...
-            Transaction.begin();
+            Transaction.beginReadOnly();
             B[] answer = match(constraints);
             Transaction.commit();
             return answer;
         }
 
-        MatchArgTree argTree = MatchArgTree.buildTree(properties,MatchArg.and(constraints));
+        return doMatch(properties,constraints);
+    }
+
+    public B[] match(Projection projection, MatchArg...constraints) throws RollbackException {
+        if (!Transaction.isActive()) {
+            Transaction.beginReadOnly();
+            B[] answer = match(projection,constraints);
+            Transaction.commit();
+            return answer;
+        }
+
+        // All the values are in memory anyway, but the unwanted properties needn't be copied into the beans
+        return doMatch(getProjectedProperties(projection),constraints);
+    }
+
+    // If props is not the properties array, it is a projection and the beans made are not tracked
+    private B[] doMatch(Property[] props, MatchArg[] constraints) throws RollbackException {
+        MatchPage page = MatchPage.extract(properties,constraints);
+        MatchArgTree argTree = MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints()));
 
     	fixMaxMin(argTree);  // Calls lockTable() if necessary
 
         lockTable();
 
+        if (page.getOrderProperties().length > 0) return orderedMatch(argTree,page,props);
+        if (page.isPaged()) return pagedMatch(argTree,page,props);
+
         List<B> answerBeans = new ArrayList<B>();
-        for (BeanTrackerRec<B> rec : changedBeans.values()) {
+        for (BeanTrackerRec<B> rec : trackedBeans().values()) {
         	B changedBean = rec.getBean();
         	if (changedBean != null) {
 	            Object[] newDBValues = makeDBValues(changedBean);
@@ -243,21 +494,318 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         	}
         }
 
-        for (Object[] dbValues : dbBeans.values()) {
+        List<Integer> newBeanPositions = new ArrayList<Integer>();
+        List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+        for (Object[] dbValues : rows().values()) {
             PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
-            if (!changedBeans.containsKey(key) && argTree.satisfied(dbValues)) {
-                B bean = makeBean(dbValues);
-                answerBeans.add(bean);
-                changedBeans.put(key,new BeanTrackerRec<B>(key,bean,dbValues));
+            if (!trackedBeans().containsKey(key) && argTree.satisfied(dbValues)) {
+                newBeanPositions.add(answerBeans.size());
+                answerBeans.add(null);
+                newDBValuesList.add(dbValues);
+            }
+        }
+
+        makeTrackedBeans(answerBeans,newBeanPositions,newDBValuesList,props);
+        return toArray(answerBeans);
+    }
+
+    /*
+     * Walks the beans in primary key order (starting after the afterKey() constraint, if any)
+     * and stops as soon as the page is full, so a page costs time in proportion to its size
+     * (plus its offset) rather than to the size of the table.
+     */
+    private B[] pagedMatch(MatchArgTree argTree, MatchPage page, Property[] props) throws RollbackException {
+        PrimaryKey<B> afterKey = null;
+        if (page.hasAfterKey()) {
+            validatePrimaryKeyValues(page.getAfterKeyValues());
+            afterKey = new PrimaryKey<B>(primaryKeyInfo,DBValues.makeDBValues(primaryKeyInfo.getProperties(),page.getAfterKeyValues()));
+        }
+
+        // Beans created in this transaction are not in dbBeans, so they're merged in (in order)
+        TreeMap<PrimaryKey<B>,B> createdBeans = new TreeMap<PrimaryKey<B>,B>();
+        for (BeanTrackerRec<B> rec : trackedBeans().values()) {
+            PrimaryKey<B> key = rec.getKey();
+            if (rec.getBean() != null && !rows().containsKey(key) && (afterKey == null || key.compareTo(afterKey) > 0)) {
+                createdBeans.put(key,rec.getBean());
+            }
+        }
+
+        Iterator<Map.Entry<PrimaryKey<B>,Object[]>> dbIter = rows().iteratorAfter(afterKey);
+        Iterator<Map.Entry<PrimaryKey<B>,B>> createdIter = createdBeans.entrySet().iterator();
+        Map.Entry<PrimaryKey<B>,Object[]> dbEntry = (dbIter.hasNext() ? dbIter.next() : null);
+        Map.Entry<PrimaryKey<B>,B> createdEntry = (createdIter.hasNext() ? createdIter.next() : null);
+
+        int toSkip = page.getOffset();
+        int limit  = (page.hasLimit() ? page.getLimit() : Integer.MAX_VALUE);
+        List<B> answerBeans = new ArrayList<B>();
+        List<Integer> newBeanPositions = new ArrayList<Integer>();
+        List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+        while (answerBeans.size() < limit && (dbEntry != null || createdEntry != null)) {
+            B trackedBean = null;
+            Object[] dbValues = null;
+            if (dbEntry == null || (createdEntry != null && createdEntry.getKey().compareTo(dbEntry.getKey()) < 0)) {
+                trackedBean = createdEntry.getValue();
+                createdEntry = (createdIter.hasNext() ? createdIter.next() : null);
+            } else {
+                BeanTrackerRec<B> rec = trackedBeans().get(dbEntry.getKey());
+                if (rec == null) {
+                    dbValues = dbEntry.getValue();
+                } else {
+                    trackedBean = rec.getBean();  // null if deleted in this transaction
+                }
+                dbEntry = (dbIter.hasNext() ? dbIter.next() : null);
+            }
+
+            if (dbValues != null) {
+                if (!argTree.satisfied(dbValues)) continue;
+            } else {
+                if (trackedBean == null || !argTree.satisfied(makeDBValues(trackedBean))) continue;
+            }
+
+            if (toSkip > 0) {
+                toSkip--;
+                continue;
+            }
+
+            if (dbValues == null) {
+                answerBeans.add(trackedBean);
+            } else {
+                newBeanPositions.add(answerBeans.size());
+                answerBeans.add(null);
+                newDBValuesList.add(dbValues);
             }
         }
+
+        makeTrackedBeans(answerBeans,newBeanPositions,newDBValuesList,props);
         return toArray(answerBeans);
     }
 
+    /*
+     * Sorts the matching beans by the orderBy() properties.  When only a page of them is wanted,
+     * a bounded heap keeps just the first offset+limit of them (in order) as the table is scanned,
+     * which takes O(n log k) time and O(k) space rather than sorting all the matching beans.
+     */
+    private B[] orderedMatch(MatchArgTree argTree, MatchPage page, Property[] props) throws RollbackException {
+        RowOrder order = new RowOrder(page);
+        int keep = (page.hasLimit() ? (int) Math.min((long) page.getOffset()+page.getLimit(),Integer.MAX_VALUE) : Integer.MAX_VALUE);
+
+        // With a limit, the head of this (reverse ordered) heap is the last of the rows being kept
+        PriorityQueue<OrderedRow> heap = null;
+        List<OrderedRow> rows = null;
+        if (page.hasLimit()) {
+            heap = new PriorityQueue<OrderedRow>(Math.max(1,Math.min(keep,CURSOR_CHUNK_SIZE)),Collections.reverseOrder(order));
+        } else {
+            rows = new ArrayList<OrderedRow>();
+        }
+
+        for (BeanTrackerRec<B> rec : trackedBeans().values()) {
+            B changedBean = rec.getBean();
+            if (changedBean != null) {
+                Object[] newDBValues = makeDBValues(changedBean);
+                if (argTree.satisfied(newDBValues)) {
+                    offer(heap,rows,keep,order,new OrderedRow(newDBValues,changedBean));
+                }
+            }
+        }
+
+        for (Object[] dbValues : rows().values()) {
+            PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
+            if (!trackedBeans().containsKey(key) && argTree.satisfied(dbValues)) {
+                offer(heap,rows,keep,order,new OrderedRow(dbValues,null));
+            }
+        }
+
+        if (heap != null) rows = new ArrayList<OrderedRow>(heap);
+        Collections.sort(rows,order);
+
+        List<B> answerBeans = new ArrayList<B>();
+        List<Integer> newBeanPositions = new ArrayList<Integer>();
+        List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+        for (int i=page.getOffset(); i<rows.size(); i++) {
+            OrderedRow row = rows.get(i);
+            if (row.trackedBean != null) {
+                answerBeans.add(row.trackedBean);
+            } else {
+                newBeanPositions.add(answerBeans.size());
+                answerBeans.add(null);
+                newDBValuesList.add(row.dbValues);
+            }
+        }
+
+        makeTrackedBeans(answerBeans,newBeanPositions,newDBValuesList,props);
+        return toArray(answerBeans);
+    }
+
+    private void offer(PriorityQueue<OrderedRow> heap, List<OrderedRow> rows, int keep, RowOrder order, OrderedRow row) {
+        if (heap == null) {
+            rows.add(row);
+        } else if (heap.size() < keep) {
+            heap.add(row);
+        } else if (keep > 0 && order.compare(row,heap.peek()) < 0) {
+            heap.poll();
+            heap.add(row);
+        }
+    }
+
+    // A matching row: a bean already tracked by this transaction (with its current values) or a row from dbBeans
+    private class OrderedRow {
+        Object[] dbValues;
+        B        trackedBean;
+
+        OrderedRow(Object[] dbValues, B trackedBean) {
+            this.dbValues = dbValues;
+            this.trackedBean = trackedBean;
+        }
+    }
+
+    // Orders rows as MySQL's ORDER BY does (nulls first), then by primary key
+    private class RowOrder implements Comparator<OrderedRow> {
+        private MatchPage  page;
+        private Property[] orderProps;
+
+        RowOrder(MatchPage page) {
+            this.page = page;
+            this.orderProps = page.getOrderProperties();
+        }
+
+        public int compare(OrderedRow row1, OrderedRow row2) {
+            for (int i=0; i<orderProps.length; i++) {
+                Object dbValue1 = row1.dbValues[orderProps[i].getPropertyNum()];
+                Object dbValue2 = row2.dbValues[orderProps[i].getPropertyNum()];
+                int c;
+                if (dbValue1 == null || dbValue2 == null) {
+                    c = (dbValue1 == null ? 0 : 1) - (dbValue2 == null ? 0 : 1);
+                } else {
+                    c = DBValues.compareNonArrayNonNullDBValues(orderProps[i],dbValue1,dbValue2);
+                }
+                if (c != 0) return page.isDescending(i) ? -c : c;
+            }
+
+            return DBValues.compareNonArrayNonNullDBValues(primaryKeyInfo.getProperties(),
+                    primaryKeyInfo.getPrimaryKeyDBValues(row1.dbValues),
+                    primaryKeyInfo.getPrimaryKeyDBValues(row2.dbValues));
+        }
+    }
+
+    /*
+     * Makes beans for the given rows (in one batch) and tracks them.  The new beans are
+     * put into answerBeans at the given positions (which were left for them, so as to keep
+     * the order of the rows).  Beans for a projection (props is not the properties array)
+     * are only partially populated, so they are not tracked.  Nor are beans made by
+     * read-only transactions.
+     */
+    private void makeTrackedBeans(List<B> answerBeans, List<Integer> newBeanPositions, List<Object[]> newDBValuesList, Property[] props) throws RollbackException {
+        List<B> newBeans = makeBeans(newDBValuesList,props);
+        for (int i=0; i<newBeans.size(); i++) {
+            Object[] dbValues = newDBValuesList.get(i);
+            B bean = newBeans.get(i);
+            answerBeans.set(newBeanPositions.get(i),bean);
+            if (props == properties && !TranImpl.isReadOnly()) {
+                PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
+                changedBeans.put(key,new BeanTrackerRec<B>(key,bean,dbValues));
+            }
+        }
+    }
+
+    public BeanCursor<B> iterate(MatchArg...constraints) throws RollbackException {
+        MatchPage page = MatchPage.extract(properties,constraints);
+        MatchArgTree argTree = MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints()));
+        if (argTree.containsMaxOrMin() || page.hasLimit() || page.getOffset() > 0 ||
+                page.getOrderProperties().length > 0 || (page.isPaged() && Transaction.isActive())) {
+            // Max and min must be computed over the whole table before any bean is known to match,
+            // as must an order other than primary key order.  Pages are small enough to hold in memory
+            // (or, in a transaction, are tracked anyway) and, unlike the cursor below, are in order
+            // with changed beans included.
+            return new BufferedBeanCursor<B>(Arrays.asList(match(constraints)));
+        }
+
+        if (!Transaction.isActive()) {
+            PrimaryKey<B> afterKey = null;
+            if (page.hasAfterKey()) {
+                validatePrimaryKeyValues(page.getAfterKeyValues());
+                afterKey = new PrimaryKey<B>(primaryKeyInfo,DBValues.makeDBValues(primaryKeyInfo.getProperties(),page.getAfterKeyValues()));
+            }
+            return new CSVBeanCursor(argTree,afterKey,null,null);
+        }
+
+        // Changed beans are already in memory, so they're returned first
+        lockTable();
+        List<B> answerBeans = new ArrayList<B>();
+        for (BeanTrackerRec<B> rec : trackedBeans().values()) {
+        	B changedBean = rec.getBean();
+        	if (changedBean != null && argTree.satisfied(makeDBValues(changedBean))) {
+        		answerBeans.add(changedBean);
+        	}
+        }
+        return new CSVBeanCursor(argTree,null,answerBeans,new HashSet<PrimaryKey<B>>(trackedBeans().keySet()));
+    }
+
+    /*
+     * Walks dbBeans in primary key order, making at most CURSOR_CHUNK_SIZE beans at each step.
+     * The position is kept as the last key visited (not as an iterator) so that the table may be
+     * unlocked, and changed by other threads, between steps.  Steps taken outside of a transaction
+     * each run in their own short transaction.
+     */
+    private class CSVBeanCursor extends BufferedBeanCursor<B> {
+    	private MatchArgTree       argTree;
+    	private Set<PrimaryKey<B>> returnedKeys;  // Keys of changed beans returned when the cursor was opened
+    	private PrimaryKey<B>      lastKey;
+
+    	CSVBeanCursor(MatchArgTree argTree, PrimaryKey<B> afterKey, List<B> initialBeans, Set<PrimaryKey<B>> changedKeys) {
+    		super(initialBeans);
+    		this.argTree = argTree;
+    		this.lastKey = afterKey;
+    		this.returnedKeys = changedKeys;
+    	}
+
+    	protected List<B> fetchChunk() throws RollbackException {
+    		boolean ownTransaction = !Transaction.isActive();
+    		try {
+	    		if (ownTransaction) Transaction.beginReadOnly();
+	    		lockTable();
+
+	    		List<B> answerBeans = new ArrayList<B>();
+	    		List<Integer> newBeanPositions = new ArrayList<Integer>();
+	    		List<Object[]> newDBValuesList = new ArrayList<Object[]>();
+	    		Map.Entry<PrimaryKey<B>,Object[]> entry = (lastKey == null ? rows().firstEntry() : rows().higherEntry(lastKey));
+	    		while (entry != null && answerBeans.size() < CURSOR_CHUNK_SIZE) {
+	    			PrimaryKey<B> key = entry.getKey();
+	    			lastKey = key;
+	    			if (returnedKeys == null || !returnedKeys.contains(key)) {
+	    				BeanTrackerRec<B> rec = trackedBeans().get(key);
+	    				if (rec == null) {
+	    					if (argTree.satisfied(entry.getValue())) {
+	    						newBeanPositions.add(answerBeans.size());
+	    						answerBeans.add(null);
+	    						newDBValuesList.add(entry.getValue());
+	    					}
+	    				} else {
+	    					// Looked up (and maybe changed) since the cursor was opened
+	    					B bean = rec.getBean();
+	    					if (bean != null && argTree.satisfied(makeDBValues(bean))) answerBeans.add(bean);
+	    				}
+	    			}
+	    			entry = rows().higherEntry(key);
+	    		}
+
+	    		makeTrackedBeans(answerBeans,newBeanPositions,newDBValuesList,properties);
+
+	    		if (ownTransaction) Transaction.commit();
+
+	    		if (answerBeans.size() == 0) return null;  // Only happens when the end is reached
+	    		return answerBeans;
+    		} finally {
+    			if (ownTransaction && Transaction.isActive()) Transaction.rollback();
+    		}
+    	}
+    }
+
     protected void setDebugOutput(Writer writer) { debug = writer; }
 
     public void prepare() throws RollbackException {
-        for (CSVFactory<?> f : involvedCSVFactories) {
+        if (TranImpl.isReadOnly()) return;
+
+        for (CSVFactory<?> f : threadInvolvedCSVFactories.get()) {
             f.doPrepare();
         }
     }
@@ -284,15 +832,52 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 	}
 
 	public void commit() {
-        for (CSVFactory<?> f : involvedCSVFactories) {
-            f.doCommit();
+        if (TranImpl.isReadOnly()) {
+            // A read-only transaction has nothing to write (and locked nothing)
+            threadSnapshot.set(null);
+            return;
+        }
+
+        ArrayList<CSVFactory<?>> involved = threadInvolvedCSVFactories.get();
+        threadInvolvedCSVFactories.set(null);
+        List<CSVFactory<?>> changedFactories = new ArrayList<CSVFactory<?>>();
+        List<Long> commitNums = new ArrayList<Long>();
+        try {
+            // The new rows of all the tables are installed at once, so that read-only
+            // transactions see all or none of this transaction's changes
+            synchronized (commitLock) {
+                Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>> newCommittedRows = new HashMap<CSVFactory<?>,PersistentTreeMap<?,Object[]>>(committedRows);
+                for (CSVFactory<?> f : involved) {
+                    if (f.doCommit(newCommittedRows)) changedFactories.add(f);
+                }
+                committedRows = newCommittedRows;
+            }
+
+            for (CSVFactory<?> f : changedFactories) {
+                commitNums.add(f.appendLog());
+            }
+        } finally {
+            for (CSVFactory<?> f : involved) {
+                f.tableLock.unlock();
+            }
+        }
+
+        // The tables are unlocked first, so that other transactions can commit to them (and
+        // append their records to the logs) while this transaction's records are written
+        for (int i=0; i<changedFactories.size(); i++) {
+            changedFactories.get(i).writeLog(commitNums.get(i));
+            changedFactories.get(i).checkpointIfLogIsBig();
         }
-        involvedCSVFactories = null;
-        tableLock.unlock();
     }
 
-    public void doCommit() {
-		boolean changedDB = false;
+    /*
+     * Puts a version of the rows with this transaction's changes into newCommittedRows
+     * (and makes it the latest rows).  Returns false if the rows were not changed.
+     * The changes are left in unloggedRows for appendLog().
+     */
+    private boolean doCommit(Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>> newCommittedRows) {
+        // Null values are for the rows removed by this transaction
+        Map<PrimaryKey<B>,Object[]> changedRows = new HashMap<PrimaryKey<B>,Object[]>();
 
 		for (BeanTrackerRec<B> rec : changedBeans.values()) {
             PrimaryKey<B> key = rec.getKey();
@@ -300,8 +885,7 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 
 			if (bean == null) {
 				// This transaction removed the bean
-				dbBeans.remove(key);
-				changedDB = true;
+				changedRows.put(key,null);
                 continue;
 			}
 
@@ -311,42 +895,125 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
             if (rec.getDBValues() == null) {
 				// This transaction created the bean
 				// (and hasn't subsequently removed it)
-				dbBeans.put(key,newDBValues);
-				changedDB = true;
+				changedRows.put(key,newDBValues);
                 continue;
 			}
 
             if (!DBValues.equalDBValues(properties,oldDBValues,newDBValues)) {
 				// We're tracking this bean and it was changed
-				dbBeans.put(key,newDBValues);
-				changedDB = true;
+				changedRows.put(key,newDBValues);
 			}
 		}
 
-		if (changedDB) flush();
 		changedBeans = null;
+		if (changedRows.size() == 0) return false;
+
+		// Read-only transactions may be reading the old rows, so the changes make a new version
+		// (which copies only the O(log n) tree nodes above each changed row)
+		PersistentTreeMap<PrimaryKey<B>,Object[]> newDBBeans = dbBeans;
+		for (Map.Entry<PrimaryKey<B>,Object[]> entry : changedRows.entrySet()) {
+			if (entry.getValue() == null) {
+				newDBBeans = newDBBeans.without(entry.getKey());
+			} else {
+				newDBBeans = newDBBeans.with(entry.getKey(),entry.getValue());
+			}
+		}
+
+		dbBeans = newDBBeans;
+		newCommittedRows.put(this,newDBBeans);
+		unloggedRows = changedRows;
+		return true;
 	}
 
 	public void rollback() {
-        for (CSVFactory<?> f : involvedCSVFactories) {
+        if (TranImpl.isReadOnly()) {
+            threadSnapshot.set(null);
+            return;
+        }
+
+        for (CSVFactory<?> f : threadInvolvedCSVFactories.get()) {
             f.changedBeans = null;
+            f.tableLock.unlock();
         }
-        involvedCSVFactories = null;
-		tableLock.unlock();
+        threadInvolvedCSVFactories.set(null);
 	}
 
+	/*
+	 * Locks just this table for the rest of the transaction.  Read-only transactions don't
+	 * lock: the first table they use takes a snapshot of the committed rows of all the tables.
+	 *
+	 * Locking in lock order can't deadlock, so a thread waits (indefinitely) for a table lock if
+	 * the table comes before, in lock order, all the tables it has already locked.  Otherwise
+	 * (as when a referenced bean is looked up before the referencing table is changed) it also
+	 * waits, but checks now and then for a cycle of threads each waiting for a table the next
+	 * one holds.  If the cycle is still there at the next check, it rolls back the transaction
+	 * (which may then be retried), releasing its locks so the others can go on.
+	 */
 	private void lockTable() throws RollbackException {
-        if (!tableLock.isHeldByCurrentThread()) {
-            tableLock.lock();
-            if (changedBeans != null) throw new AssertionError("New transaction (for this CSVFactory), but changed beans already exist");
-            if (involvedCSVFactories != null) throw new AssertionError("New transaction (for this CSVFactory), but involved factories already exist");
-            involvedCSVFactories = new ArrayList<CSVFactory<?>>();
-            TranImpl.join(this);
+        if (TranImpl.isReadOnly()) {
+            if (threadSnapshot.get() == null) {
+                threadSnapshot.set(committedRows);
+                TranImpl.join(this);
+            }
+            return;
         }
-        if (changedBeans == null) {
-            changedBeans = new HashMap<PrimaryKey<B>,BeanTrackerRec<B>>();
-            involvedCSVFactories.add(this);
+
+        if (tableLock.isHeldByCurrentThread()) return;
+
+        ArrayList<CSVFactory<?>> involved = threadInvolvedCSVFactories.get();
+        boolean inOrder = true;
+        if (involved != null) {
+            for (CSVFactory<?> f : involved) {
+                if (f.lockOrder < lockOrder) inOrder = false;
+            }
         }
+
+        Thread me = Thread.currentThread();
+        waitingFor.put(me,this);
+        try {
+            if (inOrder) {
+                tableLock.lock();
+            } else {
+                boolean deadlocked = false;
+                while (!tableLock.tryLock(DEADLOCK_CHECK_INTERVAL,TimeUnit.MILLISECONDS)) {
+                    // (Checked twice in a row, as the cycle may be seen in locks taken and released meanwhile)
+                    if (!isDeadlocked(me)) {
+                        deadlocked = false;
+                    } else if (!deadlocked) {
+                        deadlocked = true;
+                    } else {
+                        TranImpl.rollbackAndThrow("Deadlock locking (out of order) the table in "+csvFile+": retry the transaction");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            TranImpl.rollbackAndThrow(e);
+        } finally {
+            waitingFor.remove(me);
+        }
+
+        if (changedBeans != null) throw new AssertionError("New transaction (for this CSVFactory), but changed beans already exist");
+        changedBeans = new HashMap<PrimaryKey<B>,BeanTrackerRec<B>>();
+
+        if (involved == null) {
+            involved = new ArrayList<CSVFactory<?>>();
+            threadInvolvedCSVFactories.set(involved);
+            TranImpl.join(this);
+        }
+        involved.add(this);
+	}
+
+	// True if, following the table lock holders and the tables they are waiting for, this table leads back to the thread
+	private boolean isDeadlocked(Thread me) {
+		CSVFactory<?> f = this;
+		for (int i=waitingFor.size(); i>0; i--) {
+			Thread owner = f.tableLock.getOwner();
+			if (owner == null) return false;
+			if (owner == me) return true;
+			f = waitingFor.get(owner);
+			if (f == null) return false;
+		}
+		return false;  // A cycle not through this thread: one of its own waiters will find it
 	}
 
 	// Private variables used for formatting
@@ -425,6 +1092,70 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         }
 	}
 
+	/*
+	 * Writes the rows to the CSV file and then deletes the log records that it now holds
+	 * (checkpointLock must be held).  Only switching to a new log is done holding tableLock:
+	 * the log is written out and renamed to oldLogFile, and the rows as of then are kept.
+	 * Transactions may then use the table (and log their commits in the new log) while the
+	 * rows are written, so that a big table doesn't hold them up.
+	 *
+	 * If the old log is still there (because the last checkpoint failed), the log is not
+	 * renamed.  Replaying it (after the old log) is still correct, as each record has a row's
+	 * values rather than a change to them.
+	 */
+	private void checkpoint() {
+		PersistentTreeMap<PrimaryKey<B>,Object[]> rows;
+		tableLock.lock();
+		try {
+			long commitNum;
+			logLock.lock();
+			try {
+				commitNum = appendedCommits;
+			} finally {
+				logLock.unlock();
+			}
+			writeLog(commitNum);  // So no committing thread is left waiting for its records
+
+			rows = dbBeans;
+			closeLog();
+			if (!oldLogFile.exists() && logFile.exists() && !logFile.renameTo(oldLogFile)) {
+				throw new AssertionError("Could not rename "+logFile+" to "+oldLogFile);
+			}
+		} finally {
+			tableLock.unlock();
+		}
+
+		flush(rows);
+		deleteFile(oldLogFile);
+	}
+
+	private void checkpointIfLogIsBig() {
+		if (logFile.length() <= Math.max(MIN_CHECKPOINT_LOG_SIZE,csvFile.length())) return;
+
+		// If another thread is checkpointing, its new log is the one growing
+		if (!checkpointLock.tryLock()) return;
+		try {
+			// Another thread may have checkpointed just before this one got the lock
+			if (logFile.length() > Math.max(MIN_CHECKPOINT_LOG_SIZE,csvFile.length())) checkpoint();
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	// Closes the log file, so the next commit starts it again
+	private void closeLog() {
+		logLock.lock();
+		try {
+			while (logWriting) logWritten.awaitUninterruptibly();  // The timer may be forcing it
+			if (logStream != null) logStream.close();
+			logStream = null;
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		} finally {
+			logLock.unlock();
+		}
+	}
+
     private void deleteExtraBackups() {
         while (backupNums.size() > maxBackups) {
             int firstNum = backupNums.remove(0);
@@ -435,7 +1166,11 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         }
     }
 
-	private void flush() {
+	private void deleteFile(File f) {
+		if (f.exists() && !f.delete()) throw new AssertionError("Could not delete "+f);
+	}
+
+	private void flush(PersistentTreeMap<PrimaryKey<B>,Object[]> rows) {
         try {
 			backupNumber = backupNumber + 1;
             File backupFile = new File(backupFileNamePrefix + backupNumber + ".csv");
@@ -446,25 +1181,19 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 				if (!b) throw new AssertionError("An old "+newFile+" exists.  Could not delete it!");
 			}
 
-            FileWriter fw = new FileWriter(newFile);
-            BufferedWriter bw = new BufferedWriter(fw);
+            FileOutputStream fos = new FileOutputStream(newFile);
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
 
             bw.write(generateHeader(properties));
 
-            for (Object[] values : dbBeans.values()) {
-                for (int i=0; i<properties.length; i++) {
-                    if (i>0) bw.write(',');
-                    // System.out.println("flush: value="+DBValues.toString(values[i])+", prop="+properties[i]);
-                    if (properties[i].isArray()) {
-                        flushArrayValue(bw,values[i],properties[i]);
-                    } else {
-                        flushNonArrayValue(bw,values[i],properties[i]);
-                    }
-                }
+            for (Object[] values : rows.values()) {
+                flushRow(bw,values);
                 bw.write('\n');
             }
+            bw.flush();
+            // Unless the log is never forced, the rows must be on disk before the log is emptied
+            if (syncInterval >= 0) fos.getFD().sync();
             bw.close();
-            fw.close();
 
 			boolean b = csvFile.renameTo(backupFile);
             if (!b) throw new AssertionError("Could not rename old "+csvFile+" to "+backupFile);
@@ -479,7 +1208,19 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         deleteExtraBackups();
     }
 
-	private void flushArrayValue(BufferedWriter bw, Object value, Property property) throws IOException {
+	private void flushRow(Writer bw, Object[] values) throws IOException {
+        for (int i=0; i<properties.length; i++) {
+            if (i>0) bw.write(',');
+            // System.out.println("flush: value="+DBValues.toString(values[i])+", prop="+properties[i]);
+            if (properties[i].isArray()) {
+                flushArrayValue(bw,values[i],properties[i]);
+            } else {
+                flushNonArrayValue(bw,values[i],properties[i]);
+            }
+        }
+	}
+
+	private void flushArrayValue(Writer bw, Object value, Property property) throws IOException {
         if (value == null) {
             bw.write(NULL_STRING_REP);
             return;
@@ -496,7 +1237,7 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         }
     }
 
-    private void flushNonArrayValue(BufferedWriter bw, Object value, Property property) throws IOException {
+    private void flushNonArrayValue(Writer bw, Object value, Property property) throws IOException {
         if (property instanceof ReferencedBeanProperty) {
             ReferencedBeanProperty refProp = (ReferencedBeanProperty) property;
             Property[] priKeyProps = refProp.getRefBeanPrimaryKeyProperties();
@@ -530,23 +1271,30 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
         }
 
         if (type == java.sql.Date.class || type == NMSQLDate.class) {
-            bw.write(dateFormat.format((java.sql.Date)value));
+            bw.write(format(dateFormat,(java.sql.Date)value));
             return;
         }
 
         if (type == java.util.Date.class || type == NMDate.class) {
-            bw.write(dateTimeFormatWithSec.format((java.util.Date)value));
+            bw.write(format(dateTimeFormatWithSec,(java.util.Date)value));
             return;
         }
 
         if (type == java.sql.Time.class || type == NMTime.class) {
-            bw.write(timeFormatWithSec.format((java.sql.Time)value));
+            bw.write(format(timeFormatWithSec,(java.sql.Time)value));
             return;
         }
 
         bw.write(value.toString());
 	}
 
+	// SimpleDateFormat isn't thread-safe, and checkpoint() writes rows while commits log theirs
+	private String format(SimpleDateFormat format, java.util.Date date) {
+		synchronized (format) {
+			return format.format(date);
+		}
+	}
+
 	private void initBackupFileNameInfo() {
         // Note: we're guaranteed that file name ends with .csv
 		String csvFileName = csvFile.getPath();
@@ -607,17 +1355,8 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 				Object[] dbValues = parseRow(lineNum,strValues);
                 Object[] priKeyDBValues = primaryKeyInfo.getPrimaryKeyDBValues(dbValues);
                 PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues);
-				dbBeans.put(key,dbValues);
-                if (primaryKeyInfo.getProperties().length == 1) {
-    				if (dbValues[0] instanceof Integer) {
-    					int id = (Integer) dbValues[0];
-    					if (id > maxId) maxId = id;
-    				}
-    				if (dbValues[0] instanceof Long) {
-    					long id = (Long) dbValues[0];
-    					if (id > maxId) maxId = id;
-    				}
-                }
+				dbBeans = dbBeans.with(key,dbValues);
+				updateMaxId(dbValues);
 				strValues = cr.readCSVLine();
 				lineNum++;
 			}
@@ -629,6 +1368,43 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 		}
 	}
 
+	// Formats the changes left by doCommit() as log records and appends them to logBuffer
+	private long appendLog() {
+		StringWriter records = new StringWriter();
+		try {
+			Property[] priKeyProps = primaryKeyInfo.getProperties();
+			for (Map.Entry<PrimaryKey<B>,Object[]> entry : unloggedRows.entrySet()) {
+				if (entry.getValue() == null) {
+					records.write(LOG_DELETE);
+					Object[] priKeyDBValues = entry.getKey().getDBValues();
+					for (int i=0; i<priKeyProps.length; i++) {
+						records.write(',');
+						flushNonArrayValue(records,priKeyDBValues[i],priKeyProps[i]);
+					}
+				} else {
+					records.write(LOG_PUT);
+					records.write(',');
+					flushRow(records,entry.getValue());
+				}
+				records.write('\n');
+			}
+			records.write(LOG_COMMIT);
+			records.write('\n');
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		unloggedRows = null;
+
+		logLock.lock();
+		try {
+			logBuffer.append(records.toString());
+			appendedCommits++;
+			return appendedCommits;
+		} finally {
+			logLock.unlock();
+		}
+	}
+
 	private Object[] parseRow(int lineNum, String[] strValues) {
 		Object[] dbValues = new Object[properties.length];
         Iterator<String> iter = new MyArrayIterator<String>(strValues);
@@ -640,11 +1416,22 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 
     private Object parseProperty(int lineNum, Iterator<String> iter, Property property) {
         if (property instanceof ReferencedBeanProperty) {
+            // A null reference is written as a null for each of the referenced bean's primary key columns
+            List<String> strValues = new ArrayList<String>();
+            boolean allNull = true;
+            for (int i=0; i<property.getColumnNames().length && iter.hasNext(); i++) {
+                String value = iter.next();
+                if (!value.equals(NULL_STRING_REP)) allNull = false;
+                strValues.add(value);
+            }
+            if (allNull && strValues.size() == property.getColumnNames().length) return null;
+
             ReferencedBeanProperty refProp = (ReferencedBeanProperty) property;
             Property[] priKeyProps = refProp.getRefBeanPrimaryKeyProperties();
+            Iterator<String> refIter = strValues.iterator();
             Object[] dbValues = new Object[priKeyProps.length];
             for (int i=0; i<priKeyProps.length; i++) {
-                dbValues[i] = parseProperty(lineNum,iter,priKeyProps[i]);
+                dbValues[i] = parseProperty(lineNum,refIter,priKeyProps[i]);
             }
             return dbValues;
         }
@@ -686,7 +1473,7 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
     private Object parseValue(String s, Property prop) {
 		if (s.equals(NULL_STRING_REP)) return null;
 
-		Class<?> type = prop.getType();
+		Class<?> type = prop.getBaseType();  // The type of each element, for arrays
 		if (type == String.class) return unfixBadChars(s);
 
 		if (type == boolean.class) {
@@ -780,6 +1567,231 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 		throw new BeanFactoryException("Unknown type");
 	}
 
+	/*
+	 * Applies the transactions in the logs (the old log, left by a checkpoint that did not finish,
+	 * and then the log) to the rows loaded from the CSV file (as the program stopped before they
+	 * were checkpointed) and then checkpoints.
+	 */
+	private void replayLog() {
+		boolean replayed = replayLog(oldLogFile);
+		if (replayLog(logFile)) replayed = true;
+
+		if (replayed) flush(dbBeans);
+		deleteFile(oldLogFile);
+		deleteFile(logFile);
+	}
+
+	/*
+	 * Applies the transactions in the given log file, returning true if there were any.  Records
+	 * after the last commit record are from a transaction that did not finish logging its changes,
+	 * so they're ignored.
+	 */
+	private boolean replayLog(File file) {
+		if (!file.exists()) return false;
+
+		boolean replayed = false;
+		try {
+			FileReader fr = new FileReader(file);
+			CSVReader  cr = new CSVReader(fr);
+
+			List<String[]> records = new ArrayList<String[]>();
+			String[] strValues = cr.readCSVLine();
+			int lineNum = 1;
+			while (strValues != null) {
+				if (strValues.length == 1 && strValues[0].equals(LOG_COMMIT)) {
+					for (int i=0; i<records.size(); i++) {
+						replayRecord(file,lineNum-records.size()+i,records.get(i));
+					}
+					records.clear();
+					replayed = true;
+				} else {
+					records.add(strValues);
+				}
+				strValues = cr.readCSVLine();
+				lineNum++;
+			}
+
+			cr.close();
+			fr.close();
+		} catch (IOException e) {
+			throw new BeanFactoryException(e);
+		}
+
+		return replayed;
+	}
+
+	private void replayRecord(File file, int lineNum, String[] strValues) {
+		String[] values = Arrays.copyOfRange(strValues,1,strValues.length);
+
+		if (strValues[0].equals(LOG_PUT)) {
+			Object[] dbValues = parseRow(lineNum,values);
+			dbBeans = dbBeans.with(new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues)),dbValues);
+			updateMaxId(dbValues);
+			return;
+		}
+
+		if (strValues[0].equals(LOG_DELETE)) {
+			Property[] priKeyProps = primaryKeyInfo.getProperties();
+			Object[] priKeyDBValues = new Object[priKeyProps.length];
+			Iterator<String> iter = new MyArrayIterator<String>(values);
+			for (int i=0; i<priKeyProps.length; i++) {
+				priKeyDBValues[i] = parseProperty(lineNum,iter,priKeyProps[i]);
+			}
+			dbBeans = dbBeans.without(new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues));
+			return;
+		}
+
+		throw new BeanFactoryException("Invalid log record: line="+lineNum+", file="+file);
+	}
+
+	// The rows read by this transaction: those in its snapshot if it is read-only, otherwise the latest
+	private PersistentTreeMap<PrimaryKey<B>,Object[]> rows() {
+		Map<CSVFactory<?>,PersistentTreeMap<?,Object[]>> snapshot = threadSnapshot.get();
+		if (snapshot == null) return dbBeans;
+
+		@SuppressWarnings("unchecked")
+		PersistentTreeMap<PrimaryKey<B>,Object[]> answer = (PersistentTreeMap<PrimaryKey<B>,Object[]>) snapshot.get(this);
+		if (answer == null) return dbBeans;  // This table was made after the snapshot was taken
+		return answer;
+	}
+
+	// Has the timer force the log to disk after the given delay (unless it's already going to)
+	private void scheduleSync(long delay) {
+		logLock.lock();
+		try {
+			if (syncScheduled) return;
+			syncScheduled = true;
+		} finally {
+			logLock.unlock();
+		}
+
+		synchronized (CSVFactory.class) {
+			if (syncTimer == null) syncTimer = new Timer("CSVFactory log sync",true);
+			syncTimer.schedule(new TimerTask() {
+				public void run() { timedSync(); }
+			},delay);
+		}
+	}
+
+	protected void setSyncInterval(long millis) { syncInterval = millis; }
+
+	// Forces the log to disk if the sync interval requires it (called just after writing it)
+	private void syncLog() throws IOException {
+		long interval = syncInterval;
+		if (interval < 0) return;
+
+		long now = System.currentTimeMillis();
+		if (interval == 0 || now-lastSyncTime >= interval || syncFailed) {
+			logStream.getChannel().force(false);
+			lastSyncTime = now;
+			syncFailed = false;
+			return;
+		}
+
+		// Forced at the end of the interval (if not by a commit before then)
+		scheduleSync(lastSyncTime+interval-now);
+	}
+
+	/*
+	 * Forces the log to disk for the timer.  Like a thread in writeLog(), it claims the log by
+	 * setting logWriting and forces it without holding logLock, so that commits can go on
+	 * appending their records meanwhile.  There's no caller to report a failure to, so it is
+	 * left for the next commit, whose syncLog() forces again (and throws if that fails too).
+	 */
+	private void timedSync() {
+		logLock.lock();
+		try {
+			syncScheduled = false;
+			while (logWriting) logWritten.awaitUninterruptibly();
+			if (logStream == null) return;  // Emptied by a checkpoint
+			logWriting = true;
+		} finally {
+			logLock.unlock();
+		}
+
+		try {
+			logStream.getChannel().force(false);
+			lastSyncTime = System.currentTimeMillis();
+		} catch (IOException e) {
+			syncFailed = true;
+		} finally {
+			logLock.lock();
+			try {
+				logWriting = false;
+				logWritten.signalAll();
+			} finally {
+				logLock.unlock();
+			}
+		}
+	}
+
+	// The beans tracked by this transaction (none if it is read-only)
+	private Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans() {
+		if (TranImpl.isReadOnly()) return Collections.emptyMap();
+		return changedBeans;
+	}
+
+	private void updateMaxId(Object[] dbValues) {
+        if (primaryKeyInfo.getProperties().length != 1) return;
+
+		if (dbValues[0] instanceof Integer) {
+			int id = (Integer) dbValues[0];
+			if (id > maxId) maxId = id;
+		}
+		if (dbValues[0] instanceof Long) {
+			long id = (Long) dbValues[0];
+			if (id > maxId) maxId = id;
+		}
+	}
+
+	/*
+	 * Waits until the records of the given commit (and those before it) are written to the log.
+	 * A thread that finds the log is not being written writes all the records appended so far
+	 * (with one write and at most one force) on behalf of all the committing threads, so that
+	 * concurrent commits to the table share the cost of writing (and forcing) the log.
+	 */
+	private void writeLog(long commitNum) {
+		while (true) {
+			String records;
+			long lastCommitNum;
+			logLock.lock();
+			try {
+				while (logWriting && writtenCommits < commitNum) logWritten.awaitUninterruptibly();
+				if (writtenCommits >= commitNum) return;
+
+				logWriting = true;
+				records = logBuffer.toString();
+				logBuffer.setLength(0);
+				lastCommitNum = appendedCommits;
+			} finally {
+				logLock.unlock();
+			}
+
+			boolean written = false;
+			try {
+				if (logStream == null) logStream = new FileOutputStream(logFile,true);
+				logStream.write(records.getBytes());
+				syncLog();
+				written = true;
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			} finally {
+				logLock.lock();
+				try {
+					logWriting = false;
+					if (written) {
+						writtenCommits = lastCommitNum;
+					} else {
+						logBuffer.insert(0,records);  // For the next thread to try again
+					}
+					logWritten.signalAll();
+				} finally {
+					logLock.unlock();
+				}
+			}
+		}
+	}
+
 	// private static methods, in alphabetical order
 
 	private static String fixBadChars(String s) {
@@ -811,16 +1823,16 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
     		MatchArgLeafNode arg = iter.next();
 			MatchOp op = arg.getOp();
 			
-    		if (op != MatchOp.MAX && op == MatchOp.MIN) {
+    		if (op == MatchOp.MAX || op == MatchOp.MIN) {
     			Property prop = arg.getProperty();
 
     			lockTable();
 
-    			Object matchValue = getMaxMinValueOfTrackedBeans(changedBeans,prop,op);
+    			Object matchValue = getMaxMinValueOfTrackedBeans(trackedBeans(),prop,op);
 
-    	        for (Object[] dbValues : dbBeans.values()) {
+    	        for (Object[] dbValues : rows().values()) {
     	            PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
-    	            if (!changedBeans.containsKey(key)) {
+    	            if (!trackedBeans().containsKey(key)) {
     	            	Object dbValue = dbValues[prop.getPropertyNum()];
     	            	matchValue = matchMaxMin(prop,op,matchValue,dbValue);
     	            }
@@ -870,6 +1882,26 @@ public class CSVFactory<B> extends AbstractFactory<B> implements OutcomeListener
 		return b.toString();
 	}
 
+    // The log of the changes committed since the rows were last written to the CSV file
+    protected static File getLogFile(File csvFile) {
+        // Note: we're guaranteed that file name ends with .csv
+        String csvFileName = csvFile.getPath();
+        return new File(csvFileName.substring(0,csvFileName.length()-4)+"-log.txt");
+    }
+
+    // The log being checkpointed (see checkpoint()), with the changes committed before the log
+    protected static File getOldLogFile(File csvFile) {
+        String csvFileName = csvFile.getPath();
+        return new File(csvFileName.substring(0,csvFileName.length()-4)+"-log-old.txt");
+    }
+
+    // A table lock whose holder can be found (to look for deadlocks)
+    private static class TableLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        protected Thread getOwner() { return super.getOwner(); }
+    }
+
     private static class Column {
         String   name;
         Class<?> type;
@@ -28,6 +28,7 @@ public class CSVTable<B> extends BeanTable<B> {
     private AbstractFactory<?>[] referencedFactories;
 
     private CSVFactory<B> factory = null;
+    private long          syncInterval = -1;
 
     // Constructors
 
@@ -51,6 +52,14 @@ public class CSVTable<B> extends BeanTable<B> {
             throw new BeanFactoryException("Cannot create file.  It already exists.  File="+csvFile);
         }
 
+        // Logs left by a deleted table with the same name must not be replayed into this one
+        File[] logFiles = { CSVFactory.getLogFile(csvFile), CSVFactory.getOldLogFile(csvFile) };
+        for (File logFile : logFiles) {
+            if (logFile.exists() && !logFile.delete()) {
+                throw new BeanFactoryException("Cannot delete old log file.  File="+logFile);
+            }
+        }
+
         try {
             FileWriter fw = new FileWriter(csvFile);
             fw.write(CSVFactory.generateHeader(properties));
@@ -66,6 +75,10 @@ public class CSVTable<B> extends BeanTable<B> {
 
     public void delete() {
         if (!csvFile.delete()) throw new BeanFactoryException("Cannot delete file.  File="+csvFile);
+        File[] logFiles = { CSVFactory.getLogFile(csvFile), CSVFactory.getOldLogFile(csvFile) };
+        for (File logFile : logFiles) {
+            if (logFile.exists() && !logFile.delete()) throw new BeanFactoryException("Cannot delete file.  File="+logFile);
+        }
     }
 
     public Class<B> getBeanClass() { return beanClass; }
@@ -73,7 +86,7 @@ public class CSVTable<B> extends BeanTable<B> {
     public synchronized BeanFactory<B> getFactory() {
         if (factory != null) return factory;
         String[] priKeyNames = getPrimaryKeyNames();
-        factory = new CSVFactory<B>(beanClass,csvFile,maxBackups,priKeyNames,referencedFactories);
+        factory = new CSVFactory<B>(beanClass,csvFile,maxBackups,syncInterval,priKeyNames,referencedFactories);
         factory.setDebugOutput(debug);
 
         for (Property p : factory.properties) {
@@ -98,6 +111,27 @@ public class CSVTable<B> extends BeanTable<B> {
         // Does nothing in this implementation
     }
 
+    public void setConnectionLimits(int maxConnections, int minIdleConnections, long acquireTimeoutMillis) {
+        // Does nothing in this implementation
+    }
+
+    public void setFetchSize(int rows) {
+        // Does nothing in this implementation
+    }
+
+    public void setLookupBatchSize(int keys) {
+        // Does nothing in this implementation (beans are looked up in memory)
+    }
+
+    public void setIdBlockSize(int ids) {
+        // Does nothing in this implementation (keys are assigned in memory)
+    }
+
+    public synchronized void setSyncInterval(long millis) {
+        syncInterval = millis;
+        if (factory != null) factory.setSyncInterval(syncInterval);
+    }
+
 
     // Private instance methods
 
@@ -13,16 +13,28 @@ import com.google.appengine.api.rdbms.AppEngineDriver;
  * we ask the connection pool for a connection and return it to the connection
  * pool when we're finished.  The connection pool will save the connection for
  * for subsequent reuse.  If there are no open connections to hand out, the
- * connection pool opens another one.  With some JDBC implementations, idle
+ * connection pool opens another one, up to a maximum number of connections.
+ * Once that many connections are in use, callers wait (in FIFO order) for a
+ * connection to be returned.  If none is returned before the acquire timeout
+ * expires, <tt>getConnection()</tt> throws <tt>ConnectionException</tt> rather
+ * than opening yet another connection.  With some JDBC implementations, idle
  * connections eventually fail.  So, this connection pool closes idle
- * connections.  (See implementation for the current settings to determine
+ * connections (but keeps at least the minimum number of idle connections open).
+ * (See implementation for the current settings to determine
  * how long idle connections remain open.)
  */
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.sql.Statement;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionPool {
 	// Map of connection pools.  Hashed on driver+url+user.
@@ -99,6 +111,127 @@ public class ConnectionPool {
     	maxIdleTime = millis;
     }
 
+    /**
+     * Get the maximum number of connections this pool will have open at one time.
+     * @return the maximum number of connections
+     * @see setMaxConnections
+     */
+    public int getMaxConnections() {
+    	return maxConnections;
+    }
+
+    /**
+     * Changes the maximum number of connections this pool will have open at one time.
+     * When this many connections are in use, <tt>getConnection()</tt> waits for one to be released.
+     * The default is 50 connections.
+     *
+     * Lowering the maximum does not close connections that are in use.  Rather, fewer
+     * connections are handed out until the number in use drops below the new maximum.
+     * @param max the new maximum (must be at least 1)
+     * @see getMaxConnections, setAcquireTimeout
+     */
+    public synchronized void setMaxConnections(int max) {
+    	if (max < 1) throw new IllegalArgumentException("max must be at least 1: "+max);
+    	int delta = max - maxConnections;
+    	if (delta > 0) permits.release(delta);
+    	if (delta < 0) permits.reducePermits(-delta);
+    	maxConnections = max;
+    }
+
+    /**
+     * Get the minimum number of idle connections kept open by the cleaner thread.
+     * @return the minimum number of idle connections
+     * @see setMinIdleConnections
+     */
+    public int getMinIdleConnections() {
+    	return minIdleConnections;
+    }
+
+    /**
+     * Changes the minimum number of idle connections.  Idle connections are opened right away
+     * (as long as that doesn't exceed the maximum number of connections) and the cleaner thread
+     * will not close idle connections if that would leave fewer than this many open.
+     * The default is zero.
+     * @param min the new minimum
+     * @throws ConnectionException if a new connection cannot be opened
+     * @see getMinIdleConnections, setIdleConnectionCleanup
+     */
+    public void setMinIdleConnections(int min) throws ConnectionException {
+    	if (min < 0) throw new IllegalArgumentException("min cannot be negative: "+min);
+    	minIdleConnections = min;
+
+    	while (idleConnections.size() < minIdleConnections && permits.tryAcquire()) {
+    		Connection c;
+    		try {
+    			c = openConnection();
+    		} catch (ConnectionException e) {
+    			permits.release();
+    			throw e;
+    		}
+    		releaseConnection(c);
+    	}
+    }
+
+    /**
+     * Get the time <tt>getConnection()</tt> will wait for a connection when the maximum number
+     * of connections are in use.
+     * @return the acquire timeout in milliseconds
+     * @see setAcquireTimeout
+     */
+    public long getAcquireTimeout() {
+    	return acquireTimeout;
+    }
+
+    /**
+     * Changes the time <tt>getConnection()</tt> will wait for a connection when the maximum number
+     * of connections are in use.  Waiting callers are handed connections in the order in which they
+     * started waiting.  The default time is 30 seconds (30*1000 milliseconds).
+     * @param millis the acquire timeout in milliseconds
+     * @see getAcquireTimeout, setMaxConnections
+     */
+    public void setAcquireTimeout(long millis) {
+    	acquireTimeout = millis;
+    }
+
+    /**
+     * Get the maximum number of prepared statements cached for each connection.
+     * @return the maximum number of cached statements per connection
+     * @see setMaxStatementsPerConnection, prepareStatement
+     */
+    public int getMaxStatementsPerConnection() {
+    	return maxStatementsPerConnection;
+    }
+
+    /**
+     * Changes the maximum number of prepared statements cached for each connection.
+     * The least recently used statements are closed when a connection's cache is full.
+     * Zero disables caching (every statement is closed when it is released).
+     * The default is 64 statements.  The new maximum applies to connections opened
+     * after this call.
+     * @param max the new maximum
+     * @see getMaxStatementsPerConnection, prepareStatement
+     */
+    public void setMaxStatementsPerConnection(int max) {
+    	if (max < 0) throw new IllegalArgumentException("max cannot be negative: "+max);
+    	maxStatementsPerConnection = max;
+    }
+
+    /**
+     * Get the number of times <tt>prepareStatement()</tt> returned an already prepared statement.
+     * @return number of statement cache hits (for all connections in this pool)
+     */
+    public long getStatementCacheHits() {
+    	return statementCacheHits.get();
+    }
+
+    /**
+     * Get the number of times <tt>prepareStatement()</tt> had to prepare a new statement.
+     * @return number of statement cache misses (for all connections in this pool)
+     */
+    public long getStatementCacheMisses() {
+    	return statementCacheMisses.get();
+    }
+
     private String jdbcDriverName;
 	private String jdbcURL;
     private String user;
@@ -107,6 +240,17 @@ public class ConnectionPool {
     // Default time connection is allowed to be idle (20 minutes)
     private long maxIdleTime = 20 * 60 * 1000;
 
+    // Default limits on the number of connections and the time to wait for one (30 seconds)
+    private volatile int  maxConnections     = 50;
+    private volatile int  minIdleConnections = 0;
+    private volatile long acquireTimeout     = 30 * 1000;
+
+    // Default number of prepared statements cached for each connection
+    private volatile int  maxStatementsPerConnection = 64;
+
+    private AtomicLong statementCacheHits   = new AtomicLong();
+    private AtomicLong statementCacheMisses = new AtomicLong();
+
     // Ref to Cleaner that closes idle connections (defined below)
     private Cleaner cleaner = null;
 
@@ -118,27 +262,128 @@ public class ConnectionPool {
     	long       lastUsed;  // time in millis
     }
 
-    private ArrayList<MyConnTime> connections;
+    // A helper class so that the maximum number of connections can be lowered.
+    private static class Permits extends Semaphore {
+    	private static final long serialVersionUID = 1L;
+
+    	Permits(int permits) {
+    		super(permits,true);  // fair, so waiting callers are served in FIFO order
+    	}
+
+    	protected void reducePermits(int reduction) {
+    		super.reducePermits(reduction);
+    	}
+    }
+
+    // One permit for each connection that may be handed out.  A permit is held from getConnection()
+    // until the connection is released or discarded.  Because a new connection is only opened when
+    // there are no idle ones, the number of open connections never exceeds maxConnections.
+    private Permits permits;
+
+    // Idle connections, most recently used at the end (so that the least recently used ones age
+    // out at the front and can be closed by the cleaner).
+    private ConcurrentLinkedDeque<MyConnTime> idleConnections;
+
+    // Prepared statement cache for each open connection (whether idle or in use)
+    private ConcurrentHashMap<Connection,StatementCache> statementCaches;
+
+    // The connection lent to each thread by lendConnection(), if any
+    private ThreadLocal<Connection> threadLentConnection = new ThreadLocal<Connection>();
 
     private ConnectionPool(String driver, String URL, String user, String password) {
         jdbcDriverName = driver;
         jdbcURL = URL;
         this.user = user;
         this.password = password;
-        connections = new ArrayList<MyConnTime>();
+        permits = new Permits(maxConnections);
+        idleConnections = new ConcurrentLinkedDeque<MyConnTime>();
+        statementCaches = new ConcurrentHashMap<Connection,StatementCache>();
     }
 
 	public Connection getConnection() throws ConnectionException {
-		// If there is already a connection in the pool, return it
-		synchronized (connections) {
-			if (connections.size() > 0) {
-				MyConnTime myConn = connections.get(connections.size()-1);
-                connections.remove(connections.size()-1);
-                return myConn.conn;
+		Connection lent = threadLentConnection.get();
+		if (lent != null) return lent;
+
+		acquirePermits(1);
+		return takeConnection();
+	}
+
+	/**
+	 * Gets several connections at once.  The permits for all of them are acquired together,
+	 * so a caller that needs more than one connection never holds some of them while waiting
+	 * for the rest (which, with every connection in use, could leave such callers waiting
+	 * on each other until they time out).
+	 * @param count the number of connections
+	 * @return the connections, each of which must be released (or discarded)
+	 * @throws ConnectionException if the connections cannot be obtained
+	 */
+	public Connection[] getConnections(int count) throws ConnectionException {
+		acquirePermits(count);
+
+		Connection[] answer = new Connection[count];
+		for (int i=0; i<count; i++) {
+			try {
+				answer[i] = takeConnection();
+			} catch (ConnectionException e) {
+				for (int j=0; j<i; j++) releaseConnection(answer[j]);
+				permits.release(count-i-1);
+				throw e;
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Lends a connection obtained by the calling thread to that thread's own later calls
+	 * to <tt>getConnection()</tt>, which return it (without waiting for a permit) until
+	 * <tt>lendConnection(null)</tt> is called.  <tt>releaseConnection()</tt> and
+	 * <tt>discardConnection()</tt> leave the lent connection alone, so it must be released
+	 * (or discarded) by its owner once it is no longer lent.
+	 * @param c the connection to lend, or null to stop lending
+	 * @see getConnections
+	 */
+	public void lendConnection(Connection c) {
+		threadLentConnection.set(c);
+	}
+
+	/**
+	 * Opens a connection that is not part of the pool: it is not counted against
+	 * <tt>getMaxConnections()</tt>, so getting it never waits, even while the caller holds
+	 * pooled connections.  It must be closed by the caller (not released to the pool).
+	 * @return the new connection
+	 * @throws ConnectionException if the connection cannot be opened
+	 */
+	public Connection openUnpooledConnection() throws ConnectionException {
+		return openConnection();
+	}
+
+	private void acquirePermits(int count) throws ConnectionException {
+		try {
+			if (!permits.tryAcquire(count,acquireTimeout,TimeUnit.MILLISECONDS)) {
+				throw new ConnectionException("Timed out after "+acquireTimeout+" ms waiting for "+count+" of "+maxConnections+" connections to "+jdbcURL);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException(e);
 		}
+	}
+
+	// Hands out a connection for a permit already acquired (which is released if that fails)
+	private Connection takeConnection() throws ConnectionException {
+		// If there is already a connection in the pool, return it
+		MyConnTime myConn = idleConnections.pollLast();
+		if (myConn != null) return myConn.conn;
 
 		// Otherwise, make a new connection and return it
+		try {
+			return openConnection();
+		} catch (ConnectionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private Connection openConnection() throws ConnectionException {
 		if(jdbcURL.contains("google") == true){
 			// this is a jdbc meant for Google SQL. Register the AppEngineJDBC
 			try {
@@ -164,40 +409,118 @@ public class ConnectionPool {
 		}
 	}
 
+	/**
+	 * Returns a prepared statement for the given SQL on a connection obtained from
+	 * <tt>getConnection()</tt>.  If this connection already prepared the same SQL (and it's
+	 * still in the connection's cache) the same statement is returned, saving the database
+	 * from parsing and planning it again.  Statements must be handed back with
+	 * <tt>releaseStatement()</tt> rather than closed.
+	 * @param c the connection (which must be in use by the calling thread)
+	 * @param sql the SQL text to prepare
+	 * @return a prepared statement
+	 * @throws SQLException if the statement cannot be prepared
+	 */
+	public PreparedStatement prepareStatement(Connection c, String sql) throws SQLException {
+		return prepareStatement(c,sql,Statement.NO_GENERATED_KEYS);
+	}
+
+	/**
+	 * Returns a prepared statement, as with <tt>prepareStatement(Connection,String)</tt>, that
+	 * returns the keys generated by an <code>INSERT</code> (from <tt>getGeneratedKeys()</tt>) if
+	 * <tt>autoGeneratedKeys</tt> is <tt>Statement.RETURN_GENERATED_KEYS</tt>.
+	 * @param c the connection (which must be in use by the calling thread)
+	 * @param sql the SQL text to prepare
+	 * @param autoGeneratedKeys <tt>Statement.RETURN_GENERATED_KEYS</tt> or <tt>Statement.NO_GENERATED_KEYS</tt>
+	 * @return a prepared statement
+	 * @throws SQLException if the statement cannot be prepared
+	 */
+	public PreparedStatement prepareStatement(Connection c, String sql, int autoGeneratedKeys) throws SQLException {
+		StatementCache cache = statementCaches.get(c);
+		if (cache == null) {
+			cache = new StatementCache(c,maxStatementsPerConnection);
+			statementCaches.put(c,cache);
+		}
+
+		long misses = cache.getMisses();
+		PreparedStatement pstmt = cache.prepareStatement(sql,autoGeneratedKeys);
+		if (cache.getMisses() == misses) {
+			statementCacheHits.incrementAndGet();
+		} else {
+			statementCacheMisses.incrementAndGet();
+		}
+		return pstmt;
+	}
+
+	/**
+	 * Hands back a statement obtained from <tt>prepareStatement()</tt>.  The statement
+	 * is left open if it's in the connection's cache, otherwise it's closed.
+	 * @param c the connection used to prepare the statement
+	 * @param pstmt the statement
+	 * @throws SQLException if the statement cannot be closed
+	 */
+	public void releaseStatement(Connection c, PreparedStatement pstmt) throws SQLException {
+		StatementCache cache = statementCaches.get(c);
+		if (cache != null && cache.contains(pstmt)) {
+			pstmt.clearParameters();
+		} else {
+			pstmt.close();
+		}
+	}
+
+	private void closeStatements(Connection c) {
+		StatementCache cache = statementCaches.remove(c);
+		if (cache != null) cache.close();
+	}
+
 	private Connection getIdleConnection() {
-		synchronized (connections) {
-			long now = System.currentTimeMillis();
-			for (int i=0; i<connections.size(); i++) {
-				MyConnTime myConn = connections.get(i);
-				long idleTime = now - myConn.lastUsed;
-				if (idleTime > maxIdleTime) {
-					connections.remove(i);
-					return myConn.conn;
-				}
+		long now = System.currentTimeMillis();
+		Iterator<MyConnTime> iter = idleConnections.iterator();
+		while (iter.hasNext() && idleConnections.size() > minIdleConnections) {
+			MyConnTime myConn = iter.next();
+			long idleTime = now - myConn.lastUsed;
+			// Only the thread that succeeds in removing the connection owns it
+			if (idleTime > maxIdleTime && idleConnections.remove(myConn)) {
+				closeStatements(myConn.conn);
+				return myConn.conn;
 			}
-			return null;
 		}
+		return null;
 	}
 
 	private long getMostIdleTime() {
-		synchronized (connections) {
-			long answer = 0;
-			long now = System.currentTimeMillis();
-			for (MyConnTime myConn : connections) {
-				long idleTime = now - myConn.lastUsed;
-				if (idleTime > answer) answer = idleTime;
-			}
-			return answer;
-		}
+		// Connections kept open to satisfy minIdleConnections are not going to be closed, so don't count them
+		if (idleConnections.size() <= minIdleConnections) return 0;
+		MyConnTime myConn = idleConnections.peekFirst();
+		if (myConn == null) return 0;
+		return System.currentTimeMillis() - myConn.lastUsed;
 	}
 
 	public void releaseConnection(Connection c) {
+		if (c == threadLentConnection.get()) return;
+
 		MyConnTime myConn = new MyConnTime();
 		myConn.conn = c;
 		myConn.lastUsed = System.currentTimeMillis();
-		synchronized (connections) {
-            connections.add(myConn);
+		idleConnections.offerLast(myConn);
+		permits.release();
+	}
+
+	/**
+	 * Closes a connection obtained from <tt>getConnection()</tt> instead of returning it
+	 * to the pool.  Use this (rather than closing the connection directly) when the
+	 * connection is in an unknown state, so the pool can open a replacement.
+	 * @param c the connection to close
+	 */
+	public void discardConnection(Connection c) {
+		if (c == threadLentConnection.get()) return;
+
+		closeStatements(c);
+		try {
+			c.close();
+		} catch (SQLException e) {
+			// Ignore...we're throwing it away
 		}
+		permits.release();
 	}
 
 	private static class Cleaner implements Runnable {
@@ -36,6 +36,9 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
     private AbstractFactory<?>[] referencedFactories;
 
     private GoogleSQLFactory<B> factory = null;
+    private Integer fetchSize = null;  // null means use the factory's default
+    private int lookupBatchSize = 0;  // 0 means use the factory's default
+    private int idBlockSize = 0;
 
     // Constructors
 
@@ -126,7 +129,7 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
             stmt.executeUpdate(b.toString());
             stmt.close();
         } catch (SQLException e) {
-            try { con.close(); } catch (SQLException e2) { /* ignore */ }
+            connectionPool.discardConnection(con);
             throw new BeanFactoryException("Error creating table \""+tableName+"\": "+e.getMessage());
         }
 
@@ -171,7 +174,7 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
                     stmt.executeUpdate(sql.toString());
                     stmt.close();
                 } catch (SQLException e) {
-                    try { con.close(); } catch (SQLException e2) { /* ignore */ }
+                    connectionPool.discardConnection(con);
                     throw new BeanFactoryException("Error creating auxiliary table \""+tableName+'_'+prop.getName()+"\": "+e.getMessage());
                 }
             }
@@ -228,7 +231,7 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
 
             connectionPool.releaseConnection(con);
         } catch (SQLException e) {
-            try { con.close(); } catch (SQLException e2) {  }
+            connectionPool.discardConnection(con);
             throw new BeanFactoryException(e);
         }
     }
@@ -240,6 +243,9 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
         String[] priKeyNames = getPrimaryKeyNamesFromTable();
         factory = new GoogleSQLFactory<B>(beanClass,tableName,priKeyNames,connectionPool,printSQL,referencedFactories);
         factory.setDebugOutput(printSQL);
+        if (fetchSize != null) factory.setFetchSize(fetchSize);
+        if (lookupBatchSize > 0) factory.setLookupBatchSize(lookupBatchSize);
+        factory.setIdBlockSize(idBlockSize);
 
         for (Property p : factory.properties) {
         	if (p instanceof SelfReferencedBeanProperty) {
@@ -261,6 +267,37 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
         connectionPool.setIdleConnectionCleanup(enable);
     }
 
+    public synchronized void setConnectionLimits(int maxConnections, int minIdleConnections, long acquireTimeoutMillis) {
+        connectionPool.setMaxConnections(maxConnections);
+        connectionPool.setAcquireTimeout(acquireTimeoutMillis);
+        try {
+            connectionPool.setMinIdleConnections(minIdleConnections);
+        } catch (ConnectionException e) {
+            throw new BeanFactoryException(e);
+        }
+    }
+
+    public synchronized void setFetchSize(int rows) {
+        fetchSize = rows;
+        if (factory != null) factory.setFetchSize(fetchSize);
+    }
+
+    public synchronized void setLookupBatchSize(int keys) {
+        if (keys < 1) throw new IllegalArgumentException("keys must be positive: "+keys);
+        lookupBatchSize = keys;
+        if (factory != null) factory.setLookupBatchSize(lookupBatchSize);
+    }
+
+    public synchronized void setIdBlockSize(int ids) {
+        if (ids < 0) throw new IllegalArgumentException("ids cannot be negative: "+ids);
+        idBlockSize = ids;
+        if (factory != null) factory.setIdBlockSize(idBlockSize);
+    }
+
+    public void setSyncInterval(long millis) {
+        // Does nothing in this implementation (the database server makes commits durable)
+    }
+
     public boolean exists() {
         // Returns true if main table exists.
         // If main table exists, but aux tables are missing, then the world is inconsistent
@@ -290,7 +327,7 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
 
             return answer;
         } catch (SQLException e) {
-            try { con.close(); } catch (SQLException e2) {  }
+            connectionPool.discardConnection(con);
             throw new BeanFactoryException(e);
         }
     }
@@ -352,7 +389,7 @@ public class GoogleSQLTable<B> extends BeanTable<B> {
 
             return list.toArray(new String[list.size()]);
         } catch (SQLException e) {
-            try { con.close(); } catch (SQLException e2) {  }
+            connectionPool.discardConnection(con);
             throw new BeanFactoryException(e);
         }
     }
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import org.mybeans.factory.MatchArg;
+
+public class ListMatchArg extends MatchArg {
+    private String   keyName;
+    private MatchOp  op;
+    private Object[] keyValues;
+
+    public ListMatchArg(String keyName, MatchOp op, Object[] keyValues) {
+        this.keyName   = keyName;
+        this.op        = op;
+        this.keyValues = (keyValues == null ? null : keyValues.clone());
+    }
+
+    public String   getKeyName()   { return keyName;   }
+    public MatchOp  getOp()        { return op;        }
+    public Object[] getKeyValues() { return keyValues; }
+}
@@ -5,6 +5,8 @@
 
 package org.mybeans.factory.impl;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -14,6 +16,8 @@ import org.mybeans.factory.RollbackException;
 public class MatchArgLeafNode extends MatchArgTree {
 	private Property property;
 	private Object   matchValue    = null;
+	private Object[] matchValues   = null;  // For IN and NOT_IN
+	private HashSet<Object> matchDBValueSet = null;  // The DB values of matchValues, made when first needed
 	
 	
     /*
@@ -62,6 +66,7 @@ public class MatchArgLeafNode extends MatchArgTree {
     
         switch (op) {
         	case EQUALS:
+        	case NOT_EQUALS:
         	    // Valid for comparing any types, except arrays (byte[] is okay)
         		break;
         	case GREATER:
@@ -90,15 +95,77 @@ public class MatchArgLeafNode extends MatchArgTree {
         }
     }
     
+    /*
+     * For IN and NOT_IN.  Checks as for binary operators, except that no match value may be null
+     * (and referenced beans and byte[] are not allowed, as the values are tested with a HashSet).
+     */
+    public MatchArgLeafNode(Property[] allBeanProperties, ListMatchArg arg) {
+    	super(arg.getOp());
+
+    	// propertyForName throws IllegalArgumentException if the property name is not valid
+        property = Property.propertyForName(allBeanProperties,arg.getKeyName());
+
+        matchValues = arg.getKeyValues();
+        if (matchValues == null) throw new NullPointerException(op+" values cannot be null: property="+property.getName());
+
+        if (property.isArray()) throw new IllegalArgumentException("Array properties cannot be match contraints: "+property);
+
+        switch (op) {
+        	case IN:
+        	case NOT_IN:
+        		if (property instanceof ReferencedBeanProperty || property.getBaseType() == byte[].class) {
+            		throw new IllegalArgumentException(op+" cannot be applied to this property type: "+property);
+        		}
+        		break;
+        	default:
+        		throw new AssertionError("Unknown op: "+op);
+        }
+
+        for (Object value : matchValues) {
+        	if (value == null) throw new IllegalArgumentException(op+" values cannot be null (use equals() to match null): property="+property.getName());
+        	if (!property.isInstance(value)) throw new IllegalArgumentException("Constraint value for property "+property.getName()+" is not instance of "+property.getType()+".  Rather it is "+value.getClass());
+        }
+    }
+
     public void fixConstraint(MatchOp newOp, Object newValue) {
     	op = newOp;
     	matchValue = newValue;
     }
     
 	public Property   getProperty()   { return property; }
-	public Property[] getProperties() { return new Property[] { property }; }
 	public Object     getValue()      { return matchValue;    }
-	public Object[]   getValues()     { return new Object[]   { matchValue    }; }
+
+	public Property[] getProperties() {
+		if (containsMaxOrMin()) return new Property[0];
+		if (matchValues != null) {
+			Property[] answer = new Property[paddedLength(matchValues.length)];
+			Arrays.fill(answer,property);
+			return answer;
+		}
+		return new Property[] { property };
+	}
+
+	/*
+	 * The values of an IN or NOT_IN list are padded to a power of two by repeating the last
+	 * one (which doesn't change the result), so that lists of similar lengths share one SQL
+	 * statement (and one cached plan), as in MySQLFactory.lookupBeans().
+	 */
+	public Object[] getValues() {
+		if (containsMaxOrMin()) return new Object[0];
+		if (matchValues != null) {
+			Object[] answer = Arrays.copyOf(matchValues,paddedLength(matchValues.length));
+			if (matchValues.length > 0) Arrays.fill(answer,matchValues.length,answer.length,matchValues[matchValues.length-1]);
+			return answer;
+		}
+		return new Object[] { matchValue };
+	}
+
+	private static int paddedLength(int length) {
+		if (length == 0) return 0;
+		int answer = 1;
+		while (answer < length) answer *= 2;
+		return answer;
+	}
 	
     public Iterator<MatchArgLeafNode> leafIterator() {
     	return new MyLeafIterator(this);
@@ -157,6 +224,16 @@ public class MatchArgLeafNode extends MatchArgTree {
             case EQUALS:
                 Object keyDBValue = DBValues.makeDBValue(property,matchValue);
                 return DBValues.equalNonArrayDBValues(property,dbValue,keyDBValue);
+            case NOT_EQUALS:
+                return !DBValues.equalNonArrayDBValues(property,dbValue,DBValues.makeDBValue(property,matchValue));
+            case IN:
+            case NOT_IN:
+            	if (matchDBValueSet == null) {
+            		matchDBValueSet = new HashSet<Object>();
+            		for (Object value : matchValues) matchDBValueSet.add(DBValues.makeDBValue(property,value));
+            	}
+            	boolean found = (dbValue != null && matchDBValueSet.contains(dbValue));
+            	return (op == MatchOp.IN ? found : !found);
             case GREATER:
             case GREATER_OR_EQUALS:
             case LESS:
@@ -41,6 +41,17 @@ public abstract class MatchArgTree {
         		BinaryMatchArg arg = (BinaryMatchArg) constraint;
         		return new MatchArgLeafNode(allBeanProperties,arg);
         	}
+
+        	if (constraint instanceof ListMatchArg) {
+        		ListMatchArg arg = (ListMatchArg) constraint;
+        		return new MatchArgLeafNode(allBeanProperties,arg);
+        	}
+
+        	if (constraint instanceof PageMatchArg) {
+        		// MatchPage.extract() removes these from the top-level constraints
+        		PageMatchArg arg = (PageMatchArg) constraint;
+        		throw new IllegalArgumentException(arg.getOp()+" cannot be combined with and() or or()");
+        	}
         	
     		LogicMatchArg arg = (LogicMatchArg) constraint;
     		return new MatchArgInternalNode(allBeanProperties,arg);
@@ -62,6 +73,8 @@ public abstract class MatchArgTree {
     public abstract boolean containsNonPrimaryKeyProps();
     public abstract boolean containsMaxOrMin();
     
+    // The properties and values bound to the ?s of the SQL for this tree, in order
+    // (a max or min constraint has none, as it's compared with a subquery)
     public abstract Property[] getProperties();
     public abstract Object[]   getValues();
     
@@ -9,6 +9,8 @@ public enum MatchOp {
     // Valid for comparing any types, except arrays (byte[] is okay)
         EQUALS,
         NOT_EQUALS,
+        IN,
+        NOT_IN,
 
     // Valid for comparing numbers, Dates, or Strings
         GREATER,
@@ -31,11 +33,19 @@ public enum MatchOp {
         
     // Logical ops valid only for combining other ops
         OR,
-        AND;
+        AND,
+
+    // Paging and ordering ops valid only as top-level constraints
+        LIMIT,
+        OFFSET,
+        AFTER_KEY,
+        ORDER_BY,
+        ORDER_BY_DESCENDING;
 
 
     public String toString() {
         switch (this) {
+        	case AFTER_KEY:               return getClass().getSimpleName()+".AFTER_KEY";
         	case AND:                     return getClass().getSimpleName()+".AND" ;
 	        case CONTAINS:                return getClass().getSimpleName()+".CONTAINS";
 	        case CONTAINS_IGNORE_CASE:    return getClass().getSimpleName()+".CONTAINS_IGNORE_CASE";
@@ -45,11 +55,18 @@ public enum MatchOp {
 	        case EQUALS_IGNORE_CASE:      return getClass().getSimpleName()+".EQUALS_IGNORE_CASE";
 	        case GREATER:                 return getClass().getSimpleName()+".GREATER";
 	        case GREATER_OR_EQUALS:       return getClass().getSimpleName()+".GREATER_OR_EQUALS";
+	        case IN:                      return getClass().getSimpleName()+".IN";
 	        case LESS:                    return getClass().getSimpleName()+".LESS";
 	        case LESS_OR_EQUALS:          return getClass().getSimpleName()+".LESS_OR_EQUALS";
+	        case LIMIT:                   return getClass().getSimpleName()+".LIMIT";
 	        case MAX:                     return getClass().getSimpleName()+".MAX";
 	        case MIN:                     return getClass().getSimpleName()+".MIN";
+	        case NOT_EQUALS:              return getClass().getSimpleName()+".NOT_EQUALS";
+	        case NOT_IN:                  return getClass().getSimpleName()+".NOT_IN";
+	        case OFFSET:                  return getClass().getSimpleName()+".OFFSET";
         	case OR:                      return getClass().getSimpleName()+".OR" ;
+	        case ORDER_BY:                return getClass().getSimpleName()+".ORDER_BY";
+	        case ORDER_BY_DESCENDING:     return getClass().getSimpleName()+".ORDER_BY_DESCENDING";
 	        case STARTS_WITH:             return getClass().getSimpleName()+".STARTS_WITH";
 	        case STARTS_WITH_IGNORE_CASE: return getClass().getSimpleName()+".STARTS_WITH_IGNORE_CASE";
 	        default:                      throw new AssertionError(this);
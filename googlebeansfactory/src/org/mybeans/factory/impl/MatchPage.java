@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mybeans.factory.MatchArg;
+import org.mybeans.factory.RollbackException;
+
+/**
+ * The paging and ordering part of a match: the top-level <tt>limit()</tt>, <tt>offset()</tt>,
+ * <tt>afterKey()</tt> and <tt>orderBy()</tt> constraints, separated from the constraints that
+ * select beans (which are made into a <tt>MatchArgTree</tt>).
+ *
+ * Paged or ordered matches return beans sorted by the <tt>orderBy()</tt> properties (if any)
+ * and then by primary key, so that consecutive pages neither skip nor repeat beans.
+ */
+public class MatchPage {
+	public static final int NO_LIMIT = -1;
+
+	/*
+	 * Problems found cause IllegalArgumentException or NullPointerException to be thrown.
+	 * As with MatchArgTree.buildTree(), all exceptions are caught and chained in RollbackException
+	 * to ensure any active transaction for this thread is rolled back.
+	 */
+	public static MatchPage extract(Property[] allBeanProperties, MatchArg[] constraints) throws RollbackException {
+		try {
+			if (constraints == null) throw new NullPointerException("constraints cannot be null");
+
+			MatchPage page = new MatchPage();
+			for (MatchArg constraint : constraints) {
+				if (constraint instanceof PageMatchArg) {
+					page.add(allBeanProperties,(PageMatchArg) constraint);
+				} else {
+					page.constraints.add(constraint);
+				}
+			}
+
+			if (page.afterKeyValues != null && page.orderProperties.size() > 0) {
+				// The key of the last bean doesn't say where a page ended in some other order
+				throw new IllegalArgumentException("afterKey() pages in primary key order, so cannot be used with orderBy() (use offset() instead)");
+			}
+			return page;
+		} catch (Exception e) {
+			if (e instanceof RollbackException) throw (RollbackException) e;
+			TranImpl.rollbackAndThrow(e);
+			throw new AssertionError("executeRollback returned");
+		}
+	}
+
+	private List<MatchArg> constraints = new ArrayList<MatchArg>();
+	private int      limit  = NO_LIMIT;
+	private int      offset = 0;
+	private Object[] afterKeyValues = null;
+	private boolean  paged  = false;
+
+	private List<Property> orderProperties = new ArrayList<Property>();
+	private List<Boolean>  orderDescending = new ArrayList<Boolean>();
+
+	private MatchPage() {}
+
+	private void add(Property[] allBeanProperties, PageMatchArg arg) {
+		Object[] values = arg.getValues();
+		switch (arg.getOp()) {
+			case LIMIT:
+				if (limit != NO_LIMIT) throw new IllegalArgumentException("More than one limit constraint");
+				limit = (Integer) values[0];
+				if (limit < 0) throw new IllegalArgumentException("Limit cannot be negative: "+limit);
+				break;
+			case OFFSET:
+				if (offset != 0) throw new IllegalArgumentException("More than one offset constraint");
+				offset = (Integer) values[0];
+				if (offset < 0) throw new IllegalArgumentException("Offset cannot be negative: "+offset);
+				break;
+			case AFTER_KEY:
+				if (afterKeyValues != null) throw new IllegalArgumentException("More than one afterKey constraint");
+				afterKeyValues = values;
+				break;
+			case ORDER_BY:
+			case ORDER_BY_DESCENDING:
+				// propertyForName throws IllegalArgumentException if the property name is not valid
+				Property property = Property.propertyForName(allBeanProperties,(String) values[0]);
+				if (property.isArray() || property.getBaseType() == byte[].class) {
+					throw new IllegalArgumentException(arg.getOp()+" cannot be applied to this property type: "+property);
+				}
+				if (orderProperties.contains(property)) throw new IllegalArgumentException("More than one order for property: "+property.getName());
+				orderProperties.add(property);
+				orderDescending.add(arg.getOp() == MatchOp.ORDER_BY_DESCENDING);
+				return;
+			default:
+				throw new AssertionError("Unknown op: "+arg.getOp());
+		}
+		paged = true;
+	}
+
+	public MatchArg[] getConstraints()    { return constraints.toArray(new MatchArg[constraints.size()]); }
+	public int        getLimit()          { return limit;          }
+	public int        getOffset()         { return offset;         }
+	public Object[]   getAfterKeyValues() { return afterKeyValues; }
+
+	public boolean hasLimit()    { return limit != NO_LIMIT;      }
+	public boolean hasAfterKey() { return afterKeyValues != null; }
+
+	// True if any paging constraints were given
+	public boolean isPaged()     { return paged; }
+
+	// True if beans are to be returned in order (by the orderBy() properties and then by primary key)
+	public boolean isOrdered()   { return paged || orderProperties.size() > 0; }
+
+	public Property[] getOrderProperties() { return orderProperties.toArray(new Property[orderProperties.size()]); }
+	public boolean    isDescending(int i)  { return orderDescending.get(i); }
+
+	public boolean containsNonPrimaryKeyOrderProps() {
+		for (Property prop : orderProperties) {
+			if (!prop.isPrimaryKeyProperty()) return true;
+		}
+		return false;
+	}
+}
@@ -5,7 +5,10 @@
 
 package org.mybeans.factory.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -13,14 +16,21 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.mybeans.factory.BeanCursor;
 import org.mybeans.factory.BeanFactoryException;
 import org.mybeans.factory.DuplicateKeyException;
 import org.mybeans.factory.MatchArg;
+import org.mybeans.factory.Projection;
 import org.mybeans.factory.RollbackException;
 import org.mybeans.factory.Transaction;
 import org.mybeans.nonmodifiable.NMDate;
@@ -30,12 +40,31 @@ import org.mybeans.nonmodifiable.NMTime;
 public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListener {
 	private static final String ARRAY_POS_COLUMN_NAME = Property.META_SEPARATOR+"pos"+Property.META_SEPARATOR;
 	private static final Object[] ZERO_LEN_ARRAY = new Object[0];
+	private static final int ARRAY_FETCH_BATCH_SIZE = 256;  // Max primary keys in one side table IN (...) list
+	private static final int INSERT_BATCH_SIZE = 256;       // Max rows in one multi-row INSERT
+	private static final int MAX_QUERY_PLANS = 256;         // Max query shapes whose SQL is remembered
+	private static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;  // The fetch size that asks Connector/J to stream rows
+	private static final String ID_BLOCK_TABLE_NAME = "mybeans_id_blocks";  // One row per table using id blocks
 	private static ThreadLocal<Connection> threadConnection = new ThreadLocal<Connection>();
 	private static ThreadLocal<ArrayList<MySQLFactory<?>>> threadInvolvedMySQLFactories =  new ThreadLocal<ArrayList<MySQLFactory<?>>>();
 
     // For debugging
     public Writer printSQL;
 
+    // Rows per network round trip for cursors (passed to the driver as given)
+    private volatile int fetchSize = STREAMING_FETCH_SIZE;
+
+    // Max primary keys in one lookupAll() (or referenced bean) IN (...) list
+    private volatile int lookupBatchSize = ARRAY_FETCH_BATCH_SIZE;
+
+    // Auto increment keys reserved at a time by create() (0 means let the database assign them)
+    private volatile int idBlockSize = 0;
+    private long nextBlockId = 0;  // The block of reserved ids is nextBlockId up to (not including) idBlockEnd
+    private long idBlockEnd  = 0;
+    private volatile boolean idBlockTableCreated = false;
+    private Object     idBlockLock = new Object();  // Held while reserving a block
+    private Connection idBlockCon  = null;          // Used only to reserve blocks (protected by idBlockLock)
+
     // Initialized by constructor
     private ConnectionPool connectionPool;
     private String  tableName;
@@ -44,9 +73,27 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
     private String  primaryKeyColumnNamesCommasQuestions;
     private String  primaryKeyColumnNamesCommaSeparated;
     private String  primaryKeyQuestionsCommaSeparated;
+    private String  lookupSql;           // SELECT by primary key, as run by lookup()
+    private String  lookupForUpdateSql;  // ...and in a transaction
+    private boolean primaryKeyDBValuesAreBeanValues;  // True if the key is Strings and primitives (so lookup() needn't copy it)
 
 	private ThreadLocal<Map<PrimaryKey<B>,BeanTrackerRec<B>>> threadTrackedBeans = new ThreadLocal<Map<PrimaryKey<B>,BeanTrackerRec<B>>>();
 
+	// The SQL (and the properties bound to it) for each query shape used by match() and iterate().
+	// Access ordered, so the least recently used shape is dropped when there are too many.
+	private Map<String,QueryPlan> queryPlans = new LinkedHashMap<String,QueryPlan>(16,0.75f,true) {
+		protected boolean removeEldestEntry(Map.Entry<String,QueryPlan> eldest) {
+			return size() > MAX_QUERY_PLANS;
+		}
+	};
+
+	// A key reused by lookup() to probe the tracked beans
+	private ThreadLocal<PrimaryKey<B>> threadProbeKey = new ThreadLocal<PrimaryKey<B>>() {
+		protected PrimaryKey<B> initialValue() {
+			return new PrimaryKey<B>(primaryKeyInfo,null);
+		}
+	};
+
     // Constructors
 
 	public MySQLFactory(
@@ -65,6 +112,14 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         primaryKeyColumnNamesCommasQuestions = appendColumnNamesSeparatorsQuestions(new StringBuffer(),primaryKeyProperties,",").toString();
         primaryKeyColumnNamesCommaSeparated  = appendColumnNamesCommaSeparated(new StringBuffer(),primaryKeyProperties).toString();
         primaryKeyQuestionsCommaSeparated    = appendColumnQuestionsCommaSeparated(new StringBuffer(),primaryKeyProperties).toString();
+        lookupSql          = "SELECT * FROM "+this.tableName+" WHERE "+primaryKeyColumnNamesAndQuestions;
+        lookupForUpdateSql = lookupSql+" FOR UPDATE";
+
+        primaryKeyDBValuesAreBeanValues = true;
+        for (Property p : primaryKeyProperties) {
+            if (p instanceof ReferencedBeanProperty || p instanceof EnumProperty) primaryKeyDBValuesAreBeanValues = false;
+            if (p.getType() != String.class && !p.getType().isPrimitive()) primaryKeyDBValuesAreBeanValues = false;
+        }
 
         containsArrayFields = false;
         for (Property p : properties) {
@@ -77,6 +132,7 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
     // Public instance methods
 
     public B create(Object... primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
         if (!TranImpl.isActive()) {
             // Need to run this in a transaction so that we can (generate the key
             // if auto increment and then) instantiate the bean and then
@@ -106,35 +162,33 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             String sql = "INSERT INTO " + tableName + " (" + primaryKeyColumnNamesCommaSeparated +
             	") values (" + primaryKeyQuestionsCommaSeparated + ")";
             if (printSQL != null) printDebug("create: "+sql);
-            PreparedStatement pstmt = con.prepareStatement(sql);
+            PreparedStatement pstmt;
             Object[] priKeyDBValues;
-            if (autoIncrement) {
+            if (autoIncrement && idBlockSize == 0) {
+                // The generated key comes back with the INSERT (rather than with another query)
+                pstmt = connectionPool.prepareStatement(con,sql,Statement.RETURN_GENERATED_KEYS);
                 priKeyDBValues = null;
                 pstmt.setObject(1,null);  // Set to null for auto_increment
             } else {
-                priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+                if (autoIncrement) {
+                    priKeyDBValues = new Object[] { makeIdDBValue(nextBlockId()) };
+                } else {
+                    priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+                }
+                pstmt = connectionPool.prepareStatement(con,sql);
                 pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
             }
             pstmt.executeUpdate();
-            pstmt.close();
 
-            if (autoIncrement) {
-                Statement stmt = con.createStatement();
-                if (printSQL != null) printDebug("create: SELECT LAST_INSERT_ID()");
-                ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()");
+            if (priKeyDBValues == null) {
+                ResultSet rs = pstmt.getGeneratedKeys();
                 rs.next();
-                Object id = rs.getObject("LAST_INSERT_ID()");
-                if (printSQL != null) printDebug("create: ...LAST_INSERT_ID()="+id);
-                stmt.close();
-
-                if (primaryKeyInfo.getProperties()[0].getType() == long.class) {
-                    priKeyDBValues = new Object[] { id };
-                } else {
-                    long x = (Long) id;
-                    int i = (int) x;
-                    priKeyDBValues = new Object[] { i };
-                }
+                long id = rs.getLong(1);
+                rs.close();
+                if (printSQL != null) printDebug("create: ...generated key="+id);
+                priKeyDBValues = new Object[] { makeIdDBValue(id) };
             }
+            connectionPool.releaseStatement(con,pstmt);
 
             // Always runs in a transaction, so track the bean, don't close the connection
             B bean = newBean(priKeyDBValues);
@@ -158,7 +212,206 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
     }
 
+    /*
+     * Writes the beans' complete rows with multi-row INSERTs (and their arrays' elements with
+     * multi-row INSERTs into the side tables), rather than creating each bean and then
+     * writing its other property values at commit time.
+     */
+    public void createAll(B[] beans) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
+        if (!TranImpl.isActive()) {
+            // So either all or none of the beans are created
+            Transaction.begin();
+            createAll(beans);
+            Transaction.commit();
+            return;
+        }
+
+        if (primaryKeyProperties.length == 0) {
+            // A one row table
+            super.createAll(beans);
+            return;
+        }
+
+        List<Object[]> dbValuesList = null;
+        try {
+            if (beans == null) throw new NullPointerException("The \"beans\" argument is null");
+
+            dbValuesList = new ArrayList<Object[]>(beans.length);
+            for (B bean : beans) {
+                if (bean == null) throw new NullPointerException("The \"beans\" array contains a null");
+                if (!beanClass.isInstance(bean)) throw new IllegalArgumentException("A bean is not of type "+beanClass.getName()+" (it's "+bean.getClass().getName()+")");
+                validatePrimaryKeyValues(getPrimaryKeyValues(bean));   // throws RollbackException if problems
+
+                Object[] dbValues = makeDBValues(bean);
+                Object[] priKeyDBValues = primaryKeyInfo.getPrimaryKeyDBValues(dbValues);
+                for (Property prop : properties) {
+                    if (!prop.isArray()) checkMaxStringLength(prop,dbValues[prop.getPropertyNum()],priKeyDBValues);
+                }
+                dbValuesList.add(dbValues);
+            }
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+
+        Connection con = join();                        // throws RollbackException in case of problems
+
+        try {
+            int start = 0;
+            while (start < dbValuesList.size()) {
+                // The rows per INSERT is a power of two, so there are few different statements to cache
+                int count = INSERT_BATCH_SIZE;
+                while (count > dbValuesList.size()-start) count /= 2;
+
+                StringBuffer sql = new StringBuffer();
+                sql.append("INSERT INTO ").append(tableName).append(" (");
+                appendColumnNamesCommaSeparated(sql,properties);
+                sql.append(") VALUES ");
+                for (int j=0; j<count; j++) {
+                    if (j > 0) sql.append(',');
+                    sql.append('(');
+                    appendColumnQuestionsCommaSeparated(sql,properties);
+                    sql.append(')');
+                }
+                if (printSQL != null) printDebug("createAll: "+sql);
+                PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+
+                int pos = 1;
+                for (int j=0; j<count; j++) {
+                    pos += pstmtSetDBValues(pstmt,pos,properties,dbValuesList.get(start+j));
+                }
+                int num = pstmt.executeUpdate();
+                connectionPool.releaseStatement(con,pstmt);
+
+                if (num != count) myRollbackAndThrow(con,new RollbackException("Failure when inserting into "+tableName+": count="+count+": num="+num));
+                start += count;
+            }
+
+            for (Property prop : properties) {
+                if (!prop.isArray()) continue;
+
+                List<ArrayRow> rows = new ArrayList<ArrayRow>();
+                for (Object[] dbValues : dbValuesList) {
+                    Object[] array = (Object[]) dbValues[prop.getPropertyNum()];
+                    if (array == null) continue;
+                    Object[] priKeyDBValues = primaryKeyInfo.getPrimaryKeyDBValues(dbValues);
+                    for (int arrayPos=0; arrayPos<array.length; arrayPos++) {
+                        rows.add(new ArrayRow(priKeyDBValues,arrayPos,array[arrayPos]));
+                    }
+                }
+                insertArrayRows(con,tableName+'_'+prop.getName().toLowerCase(),prop,rows);
+            }
+        } catch (SQLException e) {
+            RollbackException re;
+            if (e.getMessage().startsWith("Duplicate")) {
+                re = new DuplicateKeyException(e.getMessage());
+            } else {
+                re = new RollbackException(e);
+            }
+            myRollbackAndThrow(con,re);
+        }
+    }
+
+    /*
+     * Writes the row with one INSERT ... ON DUPLICATE KEY UPDATE statement (and, if there are
+     * arrays, replaces their elements in the side tables, in a transaction).
+     */
+    public void upsert(B bean) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
+        if (primaryKeyProperties.length == 0) {
+            // A one row table
+            super.upsert(bean);
+            return;
+        }
+
+        if (containsArrayFields && !TranImpl.isActive()) {
+            // The main table and side tables must be changed together
+            Transaction.begin();
+            upsert(bean);
+            Transaction.commit();
+            return;
+        }
+
+        Object[] dbValues = null;
+        Object[] priKeyDBValues = null;
+        try {
+            if (bean == null) throw new NullPointerException("The \"bean\" argument is null");
+            if (!beanClass.isInstance(bean)) throw new IllegalArgumentException("The \"bean\" arg is not of type "+beanClass.getName()+" (it's "+bean.getClass().getName()+")");
+            validatePrimaryKeyValues(getPrimaryKeyValues(bean));   // throws RollbackException if problems
+
+            dbValues = makeDBValues(bean);
+            priKeyDBValues = primaryKeyInfo.getPrimaryKeyDBValues(dbValues);
+            for (Property prop : properties) {
+                if (!prop.isArray()) checkMaxStringLength(prop,dbValues[prop.getPropertyNum()],priKeyDBValues);
+            }
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+        }
+
+        Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = threadTrackedBeans.get();
+        if (TranImpl.isActive() && trackedBeans != null) {
+            BeanTrackerRec<B> rec = trackedBeans.get(new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues));
+            if (rec != null) {
+                // Otherwise the tracked bean would write its old values back at commit time
+                copyInto(bean,rec.getBean());
+                return;
+            }
+        }
+
+        Connection con = join();                        // throws RollbackException in case of problems
+
+        try {
+            StringBuffer sql = new StringBuffer();
+            sql.append("INSERT INTO ").append(tableName).append(" (");
+            appendColumnNamesCommaSeparated(sql,properties);
+            sql.append(") VALUES (");
+            appendColumnQuestionsCommaSeparated(sql,properties);
+            sql.append(") ON DUPLICATE KEY UPDATE ");
+            boolean first = true;
+            for (Property prop : properties) {
+                if (prop.isPrimaryKeyProperty()) continue;
+                String[] columnNames = (prop.isArray() ? new String[] { prop.getName() } : prop.getColumnNames());
+                for (String columnName : columnNames) {
+                    if (!first) sql.append(',');
+                    sql.append(columnName).append("=VALUES(").append(columnName).append(')');
+                    first = false;
+                }
+            }
+            if (first) {
+                // All the properties are in the primary key, so there's nothing to update
+                String columnName = primaryKeyProperties[0].getColumnNames()[0];
+                sql.append(columnName).append('=').append(columnName);
+            }
+            if (printSQL != null) printDebug("upsert: "+sql);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+            pstmtSetDBValues(pstmt,1,properties,dbValues);
+            pstmt.executeUpdate();
+            connectionPool.releaseStatement(con,pstmt);
+
+            for (Property prop : properties) {
+                if (!prop.isArray()) continue;
+
+                String sideTableName = tableName+'_'+prop.getName().toLowerCase();
+                sql = new StringBuffer();
+                sql.append("DELETE FROM ").append(sideTableName).append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
+                if (printSQL != null) printDebug("upsert: "+sql);
+                pstmt = connectionPool.prepareStatement(con,sql.toString());
+                pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
+                pstmt.executeUpdate();
+                connectionPool.releaseStatement(con,pstmt);
+
+                Object[] array = (Object[]) dbValues[prop.getPropertyNum()];
+                if (array != null) insertArrayElements(con,sideTableName,prop,priKeyDBValues,array,0);
+            }
+
+            if (!TranImpl.isActive()) connectionPool.releaseConnection(con);
+        } catch (SQLException e) {
+            myRollbackAndThrow(con,e);
+        }
+    }
+
     public void delete(Object... primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
         validatePrimaryKeyValues(primaryKeyValues);   // throws RollbackException if problems
         Connection con = join();                      // throws RollbackException if problems
 
@@ -168,12 +421,12 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             String whereClause = " WHERE " + primaryKeyColumnNamesAndQuestions;
             String sql = "DELETE FROM "+tableName+whereClause;
             if (printSQL != null) printDebug("delete: "+sql);
-            PreparedStatement pstmt = con.prepareStatement(sql);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql);
 
             Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
             pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
             int num = pstmt.executeUpdate();
-            pstmt.close();
+            connectionPool.releaseStatement(con,pstmt);
 
             if (num != 1) {
                 StringBuffer b = new StringBuffer();
@@ -190,10 +443,10 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
                 if (prop.isArray()) {
                     sql = "DELETE FROM "+tableName+'_'+prop.getName().toLowerCase()+whereClause;
                     if (printSQL != null) printDebug("delete: "+sql);
-                    pstmt = con.prepareStatement(sql);
+                    pstmt = connectionPool.prepareStatement(con,sql);
                     pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
                     pstmt.executeUpdate();
-                    pstmt.close();
+                    connectionPool.releaseStatement(con,pstmt);
                 }
             }
 
@@ -218,9 +471,307 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
     }
 
+    public int deleteWhere(MatchArg... constraints) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
+        MatchArgTree argTree = buildWhereTree(constraints);  // throws RollbackException in case of problems
+        if (!TranImpl.isActive() && (containsArrayFields || argTree.containsMaxOrMin())) {
+        	// The side tables must be changed with the table, and max or min values must be
+        	// fetched before the rows are deleted, so these are done in a transaction
+            Transaction.begin();
+            int answer = deleteWhere(argTree);
+            Transaction.commit();
+            return answer;
+        }
+
+        return deleteWhere(argTree);
+    }
+
+    private int deleteWhere(MatchArgTree argTree) throws RollbackException {
+    	try {
+	        // Flush any changed beans so the constraints see this transaction's changes
+	        // (as in sqlMatch(), this is not needed if only primary key properties are constrained)
+	        if (TranImpl.isActive() && argTree.containsNonPrimaryKeyProps()) flushChangedBeans();
+	
+	        if (argTree.containsMaxOrMin()) fixMaxMin(argTree);
+	
+	        // The tracked beans that are deleted are no longer tracked
+	        List<BeanTrackerRec<B>> trackedRecs = matchTrackedBeans(argTree);
+	
+	        String whereClause = computeWhereClause(argTree);
+	        Property[] keyProps = argTree.getProperties();
+	        Object[] keyDBValues = DBValues.makeDBValues(keyProps,argTree.getValues());
+	
+	        Connection con = join();
+	        try {
+	            // Array values stored in auxiliary tables go first, while the rows that say which they are still exist
+	            for (Property prop : properties) {
+	                if (prop.isArray()) deleteArrayRowsWhere(con,prop,whereClause,keyProps,keyDBValues);
+	            }
+	
+	            String sql = "DELETE FROM "+tableName+whereClause;
+	            if (printSQL != null) printDebug("deleteWhere: "+sql);
+	            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql);
+	            pstmtSetDBValues(pstmt,1,keyProps,keyDBValues);
+	            int num = pstmt.executeUpdate();
+	            connectionPool.releaseStatement(con,pstmt);
+	
+	            if (TranImpl.isActive()) {
+	                Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = threadTrackedBeans.get();
+	                for (BeanTrackerRec<B> rec : trackedRecs) trackedBeans.remove(rec.getKey());
+	            } else {
+		            if (printSQL != null) printDebug("deleteWhere: releasing connection: "+con);
+	                connectionPool.releaseConnection(con);
+	            }
+	            return num;
+	        } catch (SQLException e) {
+	            myRollbackAndThrow(con,e);
+	            throw new AssertionError("myRollbackAndThrow returned");
+	        }
+    	} catch (RollbackException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		TranImpl.rollbackAndThrow(e);
+    		throw new AssertionError("rollbackAndThrow() returned");
+    	}
+    }
+
+    public int updateWhere(Map<String,Object> set, MatchArg... constraints) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
+        Object[] setDBValues = new Object[properties.length];
+        Property[] setProps = getSetProperties(set,setDBValues);  // throws RollbackException in case of problems
+        MatchArgTree argTree = buildWhereTree(constraints);       // throws RollbackException in case of problems
+
+        boolean setsArray = false;
+        for (Property prop : setProps) {
+            if (prop.isArray()) setsArray = true;
+        }
+
+        if (!TranImpl.isActive() && (setsArray || argTree.containsMaxOrMin())) {
+        	// As for deleteWhere(), the side tables must be changed with the table
+            Transaction.begin();
+            int answer = updateWhere(setProps,setDBValues,argTree);
+            Transaction.commit();
+            return answer;
+        }
+
+        return updateWhere(setProps,setDBValues,argTree);
+    }
+
+    private int updateWhere(Property[] setProps, Object[] setDBValues, MatchArgTree argTree) throws RollbackException {
+    	try {
+	        // Flush any changed beans so the constraints see this transaction's changes, and so the
+	        // tracked beans that are changed are known to hold the values in the database
+	        if (TranImpl.isActive()) flushChangedBeans();
+	
+	        if (argTree.containsMaxOrMin()) fixMaxMin(argTree);
+	
+	        List<BeanTrackerRec<B>> trackedRecs = matchTrackedBeans(argTree);
+	
+	        for (Property prop : setProps) {
+	        	Object dbValue = setDBValues[prop.getPropertyNum()];
+	        	if (prop.isArray() && dbValue != null) {
+	        		Object[] dbArray = (Object[]) dbValue;
+	        		for (int i=0; i<dbArray.length; i++) checkMaxStringLength(prop,i,dbArray[i],null);
+	        	} else if (!prop.isArray() && dbValue != null) {
+	        		checkMaxStringLength(prop,dbValue,null);
+	        	}
+	        }
+	
+	        String whereClause = computeWhereClause(argTree);
+	        Property[] keyProps = argTree.getProperties();
+	        Object[] keyDBValues = DBValues.makeDBValues(keyProps,argTree.getValues());
+	
+	        Connection con = join();
+	        try {
+	            // Array values stored in auxiliary tables go first, while the rows still match the constraints
+	        	// (the new values might not)
+	            for (Property prop : setProps) {
+	            	if (prop.isArray()) {
+	            		deleteArrayRowsWhere(con,prop,whereClause,keyProps,keyDBValues);
+	            		Object[] dbArray = (Object[]) setDBValues[prop.getPropertyNum()];
+	            		if (dbArray != null) insertArrayRowsWhere(con,prop,dbArray,whereClause,keyProps,keyDBValues);
+	            	}
+	            }
+	
+	            StringBuffer sql = new StringBuffer();
+	            sql.append("UPDATE ");
+	            sql.append(tableName);
+	            sql.append(" SET ");
+	            appendColumnNamesSeparatorsQuestions(sql,setProps,",");
+	            sql.append(whereClause);
+	            if (printSQL != null) printDebug("updateWhere: "+sql);
+	            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+	            int pos = 1;
+	            for (Property prop : setProps) {
+	            	pos += pstmtSetDBValue(pstmt,pos,prop,setDBValues[prop.getPropertyNum()]);
+	            }
+	            pstmtSetDBValues(pstmt,pos,keyProps,keyDBValues);
+	            int num = pstmt.executeUpdate();  // The number of rows matched (unless the connection is set to useAffectedRows)
+	            connectionPool.releaseStatement(con,pstmt);
+	
+	            if (TranImpl.isActive()) {
+	            	// The tracked beans that were changed are given the new values, which are now in the database
+	                for (BeanTrackerRec<B> rec : trackedRecs) {
+	                	setBeanValues(rec.getBean(),setProps,setDBValues);
+	                	Object[] newDBValues = rec.getDBValues().clone();
+	                	for (Property prop : setProps) newDBValues[prop.getPropertyNum()] = setDBValues[prop.getPropertyNum()];
+	                	rec.setDBValues(newDBValues);
+	                }
+	            } else {
+		            if (printSQL != null) printDebug("updateWhere: releasing connection: "+con);
+	                connectionPool.releaseConnection(con);
+	            }
+	            return num;
+	        } catch (SQLException e) {
+	            myRollbackAndThrow(con,e);
+	            throw new AssertionError("myRollbackAndThrow returned");
+	        }
+    	} catch (RollbackException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		TranImpl.rollbackAndThrow(e);
+    		throw new AssertionError("rollbackAndThrow() returned");
+    	}
+    }
+
+    /*
+     * Returns the records of the beans tracked by this transaction that satisfy the constraints.
+     */
+    private List<BeanTrackerRec<B>> matchTrackedBeans(MatchArgTree argTree) throws RollbackException {
+    	List<BeanTrackerRec<B>> answer = new ArrayList<BeanTrackerRec<B>>();
+    	if (!TranImpl.isActive()) return answer;
+
+    	for (BeanTrackerRec<B> rec : threadTrackedBeans.get().values()) {
+    		if (argTree.satisfied(makeDBValues(rec.getBean()))) answer.add(rec);
+    	}
+    	return answer;
+    }
+
+    /*
+     * Returns the WHERE clause (with a leading space) for the constraints, or "" if there are none.
+     * The values of partial string matches are fixed up for LIKE, so the tree cannot be used
+     * to test beans after this is called.
+     */
+    private String computeWhereClause(MatchArgTree argTree) {
+        String whereTest = computeWhereTest(argTree);
+        fixDBValuesForPartialStringMatch(argTree);
+        if (whereTest.length() == 0) return "";
+        return " WHERE "+whereTest;
+    }
+
+    private void deleteArrayRowsWhere(Connection con, Property prop, String whereClause, Property[] keyProps, Object[] keyDBValues) throws SQLException {
+        StringBuffer sql = new StringBuffer();
+        sql.append("DELETE FROM ");
+        sql.append(tableName).append('_').append(prop.getName().toLowerCase());
+        if (whereClause.length() > 0) {
+            sql.append(" WHERE (").append(primaryKeyColumnNamesCommaSeparated).append(") IN (SELECT ");
+            sql.append(primaryKeyColumnNamesCommaSeparated).append(" FROM ").append(tableName);
+            sql.append(whereClause).append(')');
+        }
+        if (printSQL != null) printDebug("deleteArrayRowsWhere: "+sql);
+        PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+        pstmtSetDBValues(pstmt,1,keyProps,keyDBValues);
+        pstmt.executeUpdate();
+        connectionPool.releaseStatement(con,pstmt);
+    }
+
+    /*
+     * Gives each row matching the constraints the given array, with one INSERT ... SELECT per
+     * array element (sent as a batch).
+     */
+    private void insertArrayRowsWhere(Connection con, Property prop, Object[] dbArray, String whereClause, Property[] keyProps, Object[] keyDBValues) throws SQLException {
+        if (dbArray.length == 0) return;
+
+        String[] columnNames = prop.getColumnNames();
+        StringBuffer sql = new StringBuffer();
+        sql.append("INSERT INTO ").append(tableName).append('_').append(prop.getName().toLowerCase()).append(" (");
+        sql.append(primaryKeyColumnNamesCommaSeparated).append(", ");
+        sql.append(ARRAY_POS_COLUMN_NAME);
+        for (String columnName : columnNames) sql.append(", ").append(columnName);
+        sql.append(") SELECT ");
+        sql.append(primaryKeyColumnNamesCommaSeparated).append(", ?");
+        for (int k=0; k<columnNames.length; k++) sql.append(", ?");
+        sql.append(" FROM ").append(tableName);
+        sql.append(whereClause);
+        if (printSQL != null) printDebug("insertArrayRowsWhere: "+sql);
+        PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+        try {
+            for (int arrayPos=0; arrayPos<dbArray.length; arrayPos++) {
+                int pos = 1;
+                pos += pstmtSetArrayPos(pstmt,pos,arrayPos);
+                pos += pstmtSetNonArrayDBValue(pstmt,pos,prop,dbArray[arrayPos]);
+                pstmtSetDBValues(pstmt,pos,keyProps,keyDBValues);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException e) {
+            try { pstmt.clearBatch(); } catch (SQLException e2) { /* ignore */ }
+            throw e;
+        }
+        connectionPool.releaseStatement(con,pstmt);
+    }
+
     public B lookup(Object... primaryKeyValues) throws RollbackException {
         validatePrimaryKeyValues(primaryKeyValues);   // throws RollbackException in case of problems
+        if (primaryKeyProperties.length == 0) return matchLookup(primaryKeyValues);
+
+        // This is run for every lookup, so it uses SQL made by the constructor (and so a cached statement)
+        // rather than building a constraint tree for the key as match() would
+        Object[] priKeyDBValues = primaryKeyValues;
+        if (!primaryKeyDBValuesAreBeanValues) priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+
+        Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = (TranImpl.isActive() ? threadTrackedBeans.get() : null);
+        if (trackedBeans != null) {
+            PrimaryKey<B> probeKey = threadProbeKey.get();
+            probeKey.setDBValues(priKeyDBValues);
+            BeanTrackerRec<B> rec = trackedBeans.get(probeKey);
+            probeKey.setDBValues(null);
+            if (rec != null) return rec.getBean();
+        }
+
+        Connection con = join();                      // throws RollbackException if problems
 
+        try {
+            boolean inTransaction = TranImpl.isActive();
+            if (containsArrayFields && !inTransaction) con.setAutoCommit(false);
+
+            String sql = (lockingReads() ? lookupForUpdateSql : lookupSql);
+            if (printSQL != null) printDebug("lookup: "+sql);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql);
+            pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
+            ResultSet rs = pstmt.executeQuery();
+            Object[] dbValues = null;
+            if (rs.next()) dbValues = loadDBValues(rs,properties);
+            rs.close();
+            connectionPool.releaseStatement(con,pstmt);
+
+            if (dbValues != null && containsArrayFields) fillArrayDBValues(con,dbValues,properties);
+
+            if (!inTransaction) {
+                if (containsArrayFields) {
+                    con.commit();
+                    con.setAutoCommit(true);
+                }
+                if (printSQL != null) printDebug("lookup: releasing connection: "+con);
+                connectionPool.releaseConnection(con);
+                if (dbValues == null) return null;
+                return makeBean(dbValues);
+            }
+
+            if (dbValues == null) return null;
+            B bean = makeBean(dbValues);
+            if (TranImpl.isReadOnly()) return bean;  // Beans are not tracked by read-only transactions
+            PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
+            threadTrackedBeans.get().put(key,new BeanTrackerRec<B>(key,bean,dbValues));
+            return bean;
+        } catch (SQLException e) {
+            myRollbackAndThrow(con,e);
+            throw new AssertionError("myRollbackAndThrow returned");
+        }
+    }
+
+    // For tables without a primary key: "looks up" the only row (if there is just one)
+    private B matchLookup(Object... primaryKeyValues) throws RollbackException {
         try {
 	        MatchArg[] matchArgs = new MatchArg[primaryKeyProperties.length];
 	        for (int i=0; i<primaryKeyProperties.length; i++) {
@@ -246,18 +797,98 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
     }
 
-    public B[] match(MatchArg...constraints) throws RollbackException {
-        MatchArgTree sepMatchArgs = MatchArgTree.buildTree(properties,MatchArg.and(constraints)); // throws RollbackException in case of problems
-        if (!TranImpl.isActive() && sepMatchArgs.containsMaxOrMin()) {
-        	// If we have a max or min, we must do match in a transaction so we can
-        	// first fetch max and min values and then match the binary constraints
-            Transaction.begin();
-            B[] answer = sqlMatch(sepMatchArgs);  // throws RollbackException in case of problems
-            Transaction.commit();
+    /*
+     * Fetches the beans for many primary keys with each SELECT ... WHERE (pk) IN (...) query
+     * (rather than one query per key, as in the default implementation).  Used to resolve
+     * the beans referenced by a batch of beans.
+     */
+    protected Map<PrimaryKey<B>,B> lookupBeans(Collection<PrimaryKey<B>> keys) throws RollbackException {
+        if (primaryKeyProperties.length == 0) return super.lookupBeans(keys);
+
+        Map<PrimaryKey<B>,B> answer = new HashMap<PrimaryKey<B>,B>();
+        Property[] priKeyDBProps = primaryKeyInfo.getProperties();
+
+        // Beans tracked by this transaction are already at hand, so only the others are fetched
+        Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = (TranImpl.isActive() ? threadTrackedBeans.get() : null);
+        List<PrimaryKey<B>> keyList = new ArrayList<PrimaryKey<B>>(keys.size());
+        for (PrimaryKey<B> key : keys) {
+            BeanTrackerRec<B> rec = (trackedBeans == null ? null : trackedBeans.get(key));
+            if (rec != null) {
+                answer.put(key,rec.getBean());
+            } else {
+                keyList.add(key);
+            }
+        }
+
+        // Keys of the fetched rows, as compared by the default collation (see foldKey())
+        Set<List<Object>> fetchedFoldedKeys = new HashSet<List<Object>>();
+
+        try {
+            int batchSize = lookupBatchSize;
+            for (int start=0; start<keyList.size(); start+=batchSize) {
+                int count = Math.min(batchSize,keyList.size()-start);
+
+                // Padded to a power of two (repeating the last key), as in fillArrayDBValues()
+                int paddedCount = 1;
+                while (paddedCount < count) paddedCount *= 2;
+
+                StringBuffer sql = new StringBuffer();
+                sql.append("SELECT * FROM ").append(tableName);
+                sql.append(" WHERE (").append(primaryKeyColumnNamesCommaSeparated).append(") IN (");
+                for (int j=0; j<paddedCount; j++) {
+                    if (j > 0) sql.append(',');
+                    sql.append('(').append(primaryKeyQuestionsCommaSeparated).append(')');
+                }
+                sql.append(')');
+                if (lockingReads()) sql.append(" FOR UPDATE");
+
+                Property[] keyProps = new Property[paddedCount*priKeyDBProps.length];
+                Object[] keyDBValues = new Object[keyProps.length];
+                for (int j=0; j<paddedCount; j++) {
+                    Object[] priKeyDBValues = keyList.get(start+Math.min(j,count-1)).getDBValues();
+                    System.arraycopy(priKeyDBProps,0,keyProps,j*priKeyDBProps.length,priKeyDBProps.length);
+                    System.arraycopy(priKeyDBValues,0,keyDBValues,j*priKeyDBProps.length,priKeyDBProps.length);
+                }
+
+                for (B bean : sqlMatch(sql.toString(),keyProps,keyDBValues,null,properties)) {
+                    if (bean == null) continue;
+                    Object[] priKeyDBValues = DBValues.makeDBValues(priKeyDBProps,getPrimaryKeyValues(bean));
+                    answer.put(new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues),bean);
+                    fetchedFoldedKeys.add(foldKey(priKeyDBValues));
+                }
+            }
+
+            // The database matched the keys as its collation compares them, so a key that differs
+            // from a fetched row's (say, only in case) may still have fetched it.  Such keys are
+            // looked up on their own, to find whatever bean lookup() would.
+            for (PrimaryKey<B> key : keyList) {
+                if (answer.containsKey(key) || !fetchedFoldedKeys.contains(foldKey(key.getDBValues()))) continue;
+                B bean = lookup(BeanValues.makeBeanValues(primaryKeyProperties,key.getDBValues()));
+                if (bean != null) answer.put(key,bean);
+            }
             return answer;
+        } catch (RollbackException e) {
+            throw e;
+        } catch (Exception e) {
+            TranImpl.rollbackAndThrow(e);
+            throw new AssertionError("rollbackAndThrow returned");
         }
+    }
+
+    public B[] match(MatchArg...constraints) throws RollbackException {
+        MatchPage page = MatchPage.extract(properties,constraints);                                        // throws RollbackException in case of problems
+        MatchArgTree sepMatchArgs = MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints())); // throws RollbackException in case of problems
 
-        return sqlMatch(sepMatchArgs);           // throws RollbackException in case of problems
+        // (Max and min constraints are matched with subqueries, so they don't need a transaction,
+        // except in read-write transactions, where sqlMatch() reads and locks them first)
+        return sqlMatch(sepMatchArgs,page,properties);           // throws RollbackException in case of problems
+    }
+
+    public B[] match(Projection projection, MatchArg...constraints) throws RollbackException {
+        Property[] props = getProjectedProperties(projection);                                           // throws RollbackException in case of problems
+        MatchPage page = MatchPage.extract(properties,constraints);                                        // throws RollbackException in case of problems
+        MatchArgTree sepMatchArgs = MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints())); // throws RollbackException in case of problems
+        return sqlMatch(sepMatchArgs,page,props);           // throws RollbackException in case of problems
     }
 
     public int getBeanCount() throws RollbackException {
@@ -287,8 +918,166 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         printSQL = writer;
     }
 
+    protected void setIdBlockSize(int ids) {
+        idBlockSize = ids;
+    }
+
+    protected void setFetchSize(int rows) {
+        fetchSize = rows;
+    }
+
+    protected void setLookupBatchSize(int keys) {
+        lookupBatchSize = keys;
+    }
+
+    public BeanCursor<B> iterate(MatchArg...constraints) throws RollbackException {
+        MatchPage page = MatchPage.extract(properties,constraints);                                   // throws RollbackException in case of problems
+        MatchArgTree argTree = MatchArgTree.buildTree(properties,MatchArg.and(page.getConstraints())); // throws RollbackException in case of problems
+        if (TranImpl.isReadOnly()) {
+            // Read-only transactions don't track beans, so they're read a chunk at a time
+            validateAfterKey(page);
+            return new ReadOnlyBeanCursor(constraints,page);
+        }
+
+        if (TranImpl.isActive()) {
+            // Beans returned in a read-write transaction are tracked (and so kept in memory)
+            // until it commits, so there's nothing to gain by streaming
+            return new BufferedBeanCursor<B>(Arrays.asList(match(constraints)));
+        }
+
+        validateAfterKey(page);
+
+        // The cursor's result set keeps one connection busy until it's closed, so another one is needed
+        // for array properties and referenced beans.  Both are taken at once so that open cursors
+        // never hold one connection while waiting for another.
+        Connection[] cons;
+        try {
+            cons = connectionPool.getConnections(2);
+        } catch (ConnectionException e) {
+            throw new RollbackException(e);
+        }
+        Connection con = cons[0];
+        if (printSQL != null) printDebug("iterate: no transaction, connections="+con+", "+cons[1]);
+        try {
+            QueryPlan plan = getQueryPlan(argTree,page,properties);
+            String sql = plan.sql;
+            fixDBValuesForPartialStringMatch(argTree);
+            Property[] keyProps = plan.keyProps;
+            Object[] keyDBValues = getKeyDBValues(argTree,page);
+
+            if (printSQL != null) printDebug("iterate: "+sql);
+            // Not from the statement cache, as it stays open (with its result set) until the cursor is closed
+            PreparedStatement pstmt = con.prepareStatement(sql,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
+            pstmt.setFetchSize(fetchSize);
+            int pos = 1;
+            pos += pstmtSetDBValues(pstmt,pos,keyProps,keyDBValues);
+            pstmtSetPage(pstmt,pos,page);
+            ResultSet rs = pstmt.executeQuery();
+            return new SQLBeanCursor(con,cons[1],pstmt,rs);
+        } catch (SQLException e) {
+            connectionPool.releaseConnection(cons[1]);
+            myRollbackAndThrow(con,e);
+            throw new AssertionError("myRollbackAndThrow returned");
+        }
+    }
+
     // Private instance methods
 
+    public InputStream openInputStream(String propertyName, Object... primaryKeyValues) throws RollbackException {
+        Property prop = getStreamProperty(propertyName);  // throws RollbackException in case of problems
+        validatePrimaryKeyValues(primaryKeyValues);        // throws RollbackException in case of problems
+        Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+
+        Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = threadTrackedBeans.get();
+        if (TranImpl.isActive() && trackedBeans != null) {
+            BeanTrackerRec<B> rec = trackedBeans.get(new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues));
+            if (rec != null) {
+                // The tracked bean's value (which may have been changed) is already in memory
+                byte[] value = (byte[]) getBeanValue(rec.getBean(),prop);
+                if (value == null) return null;
+                return new ByteArrayInputStream(value);
+            }
+        }
+
+        Connection con = join();
+        try {
+            StringBuffer sql = new StringBuffer();
+            sql.append("SELECT ");
+            appendColumnNamesCommaSeparated(sql,new Property[] { prop });
+            sql.append(" FROM ").append(tableName);
+            if (primaryKeyProperties.length > 0) sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
+            if (lockingReads()) sql.append(" FOR UPDATE");
+
+            if (printSQL != null) printDebug("openInputStream: "+sql);
+            // Not from the statement cache, as it stays open (with its result set) until the stream is closed
+            PreparedStatement pstmt = con.prepareStatement(sql.toString(),ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
+            // Streamed outside a transaction (a streaming result set would keep the transaction's
+            // connection from being used for anything else until the stream is closed)
+            if (!TranImpl.isActive()) pstmt.setFetchSize(STREAMING_FETCH_SIZE);
+            pstmtSetDBValues(pstmt,1,primaryKeyInfo.getProperties(),priKeyDBValues);
+            ResultSet rs = pstmt.executeQuery();
+
+            InputStream in = null;
+            if (rs.next()) in = rs.getBinaryStream(1);
+            SQLInputStream answer = new SQLInputStream(in,TranImpl.isActive() ? null : con,pstmt,rs);
+            if (in != null) return answer;
+
+            answer.close();
+            return null;
+        } catch (SQLException e) {
+            myRollbackAndThrow(con,e);
+            throw new AssertionError("myRollbackAndThrow returned");
+        } catch (IOException e) {
+            myRollbackAndThrow(con,e);
+            throw new AssertionError("myRollbackAndThrow returned");
+        }
+    }
+
+    public void updateFromStream(String propertyName, InputStream in, int length, Object... primaryKeyValues) throws RollbackException {
+        TranImpl.checkWritable();                     // throws RollbackException if in a read-only transaction
+        Property prop = getStreamProperty(propertyName);  // throws RollbackException in case of problems
+        validatePrimaryKeyValues(primaryKeyValues);        // throws RollbackException in case of problems
+        Object[] priKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),primaryKeyValues);
+
+        Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = threadTrackedBeans.get();
+        if (TranImpl.isActive() && trackedBeans != null &&
+                trackedBeans.containsKey(new PrimaryKey<B>(primaryKeyInfo,priKeyDBValues))) {
+            // The tracked bean would write its own value back at commit time, so set the new value into it
+            super.updateFromStream(propertyName,in,length,primaryKeyValues);
+            return;
+        }
+
+        Connection con = join();
+        try {
+            if (in == null) throw new NullPointerException("in");
+            if (length < 0) throw new IllegalArgumentException("length cannot be negative: "+length);
+
+            StringBuffer sql = new StringBuffer();
+            sql.append("UPDATE ").append(tableName).append(" SET ");
+            appendColumnNamesSeparatorsQuestions(sql,new Property[] { prop },",");
+            if (primaryKeyProperties.length > 0) sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
+            if (printSQL != null) printDebug("updateFromStream: "+sql);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+
+            // The driver reads the stream as it sends the statement, so the value is never all in memory here
+            pstmt.setBinaryStream(1,in,length);
+            pstmtSetDBValues(pstmt,2,primaryKeyInfo.getProperties(),priKeyDBValues);
+            int num = pstmt.executeUpdate();
+            connectionPool.releaseStatement(con,pstmt);
+
+            if (num > 1) myRollbackAndThrow(con,new RollbackException("Found "+num+" rows with same primary key: "+DBValues.toString(priKeyDBValues)));
+            if (num == 0) myRollbackAndThrow(con,new RollbackException("Couldn't find the row with this primary key: "+DBValues.toString(priKeyDBValues)));
+
+            if (!TranImpl.isActive()) connectionPool.releaseConnection(con);
+        } catch (SQLException e) {
+            myRollbackAndThrow(con,e);
+        } catch (RollbackException e) {
+            throw e;
+        } catch (Exception e) {
+            myRollbackAndThrow(con,e);
+        }
+    }
+
     private StringBuffer appendNonArrayColumnNamesAndQuestions(StringBuffer sql, Property prop, String separator) {
         String[] columnNames = prop.getColumnNames();
         for (int i=0; i<columnNames.length; i++) {
@@ -380,6 +1169,15 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         Iterator<Column> iterator() { return list.iterator(); }
     }
 
+    // afterKey() pages in primary key order, so it can't be used with a table without a primary key
+    private void validateAfterKey(MatchPage page) throws RollbackException {
+        if (!page.hasAfterKey()) return;
+        if (primaryKeyProperties.length == 0) {
+            TranImpl.rollbackAndThrow(new IllegalArgumentException("afterKey() cannot be used with a table that has no primary key"));
+        }
+        validatePrimaryKeyValues(page.getAfterKeyValues());
+    }
+
     private void validateTable() {
         Connection con;
         try {
@@ -477,26 +1275,145 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             if (printSQL != null) printDebug("validateTable: releasing connection: "+con);
             connectionPool.releaseConnection(con);
         } catch (SQLException e) {
-            try { con.close(); } catch (SQLException e2) {  }
+            connectionPool.discardConnection(con);
             throw new BeanFactoryException(e);
         } catch (BeanFactoryException e) {
-            try { con.close(); } catch (SQLException e2) {  }
+            connectionPool.discardConnection(con);
             throw e;
         }
     }
 
-    private String computeSql(MatchArgTree argTree) {
+    /*
+     * Returns the SQL for the constraints (and paging and projection) and the properties of the values
+     * bound to its ?s.  These depend only on the shape of the query, not on the values, so they're
+     * remembered for each shape and only computed the first time a shape is seen.
+     */
+    private QueryPlan getQueryPlan(MatchArgTree argTree, MatchPage page, Property[] props) {
+        String shape = computeQueryShape(argTree,page,props);
+        QueryPlan plan;
+        synchronized (queryPlans) {
+            plan = queryPlans.get(shape);
+        }
+        if (plan != null) return plan;
+
+        plan = new QueryPlan(computeSql(argTree,page,props),getKeyProperties(argTree,page));
+        synchronized (queryPlans) {
+            queryPlans.put(shape,plan);
+        }
+        return plan;
+    }
+
+    /*
+     * The SQL for a query shape and the properties of the values bound to its ?s
+     * (before those of limit() and offset()).
+     */
+    private static class QueryPlan {
+        String     sql;
+        Property[] keyProps;
+
+        QueryPlan(String sql, Property[] keyProps) {
+            this.sql      = sql;
+            this.keyProps = keyProps;
+        }
+    }
+
+    /*
+     * Describes everything computeSql() looks at, but not the values bound to the ?s:
+     * the ops and properties of the constraints (and how they're nested with AND and OR),
+     * the paging and ordering, the projection, and whether FOR UPDATE is added.
+     */
+    private String computeQueryShape(MatchArgTree argTree, MatchPage page, Property[] props) {
+        StringBuffer shape = new StringBuffer();
+        appendQueryShape(shape,argTree);
+
+        Property[] orderProps = page.getOrderProperties();
+        for (int i=0; i<orderProps.length; i++) {
+            shape.append(page.isDescending(i) ? " D" : " A").append(orderProps[i].getPropertyNum());
+        }
+        if (page.hasAfterKey())   shape.append(" K");
+        if (page.hasLimit())      shape.append(" L");
+        if (page.getOffset() > 0) shape.append(" O");
+
+        if (props != properties) {
+            shape.append(" P");
+            for (Property prop : props) shape.append(prop.getPropertyNum()).append(',');
+        }
+
+        if (lockingReads()) shape.append(" U");
+        return shape.toString();
+    }
+
+    private void appendQueryShape(StringBuffer shape, MatchArgTree argTree) {
+        shape.append(argTree.getOp());
+
+        if (argTree instanceof MatchArgInternalNode) {
+            shape.append('(');
+            for (MatchArgTree subNode : ((MatchArgInternalNode) argTree).getSubNodes()) {
+                appendQueryShape(shape,subNode);
+                shape.append(',');
+            }
+            shape.append(')');
+            return;
+        }
+
+        MatchArgLeafNode leaf = (MatchArgLeafNode) argTree;
+        shape.append(':').append(leaf.getProperty().getPropertyNum());
+        if (leaf.getOp() == MatchOp.IN || leaf.getOp() == MatchOp.NOT_IN) {
+            shape.append('#').append(leaf.getValues().length);  // The number of ?s in the list (padded to a power of two)
+        }
+    }
+
+    private String computeSql(MatchArgTree argTree, MatchPage page, Property[] props) {
         StringBuffer sql = new StringBuffer();
-        sql.append("SELECT * FROM ");
+        sql.append("SELECT ");
+        if (props == properties) {
+        	sql.append('*');
+        } else {
+        	// A projection: only the columns backing the given properties are read
+        	appendColumnNamesCommaSeparated(sql,props);
+        }
+        sql.append(" FROM ");
         sql.append(tableName);
         
         String whereTest = computeWhereTest(argTree);
+        if (page.hasAfterKey()) {
+        	// Keyset paging: a range scan of the primary key index starting after the given key
+        	String afterKeyTest = "("+primaryKeyColumnNamesCommaSeparated+") > ("+primaryKeyQuestionsCommaSeparated+")";
+        	whereTest = (whereTest.length() == 0 ? afterKeyTest : "("+whereTest+") AND "+afterKeyTest);
+        }
         if (whereTest.length() > 0) {
         	sql.append(" WHERE ");
         	sql.append(whereTest);
         }
 
-        if (TranImpl.isActive()) sql.append(" FOR UPDATE");
+        if (page.isOrdered()) {
+        	sql.append(" ORDER BY ");
+        	Property[] orderProps = page.getOrderProperties();
+        	for (int i=0; i<orderProps.length; i++) {
+        		for (String columnName : orderProps[i].getColumnNames()) {
+        			sql.append(columnName);
+        			if (page.isDescending(i)) sql.append(" DESC");
+        			sql.append(',');
+        		}
+        	}
+        	// Then by primary key, so the order (and so each page) is the same every time
+        	// (a table without a primary key has at most one row, so its order is always the same)
+        	if (primaryKeyProperties.length > 0) {
+        		sql.append(primaryKeyColumnNamesCommaSeparated);
+        	} else if (orderProps.length > 0) {
+        		sql.setLength(sql.length()-1);  // The last comma
+        	} else {
+        		sql.setLength(sql.length()-" ORDER BY ".length());
+        	}
+        	if (page.hasLimit()) {
+        		sql.append(" LIMIT ?");
+        	} else if (page.getOffset() > 0) {
+        		sql.append(" LIMIT 18446744073709551615");  // MySQL's way of saying no limit (an OFFSET needs a LIMIT)
+        	}
+        	if (page.getOffset() > 0) sql.append(" OFFSET ?");
+        }
+
+        if (lockingReads()) sql.append(" FOR UPDATE");
 
         return sql.toString();
     }
@@ -527,6 +1444,24 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         switch (op) {
             case EQUALS:
                 return keyName+" <=> ?";
+            case NOT_EQUALS:
+            	// (Not "<>", which is never true for NULLs, so it would disagree with EQUALS)
+                return "NOT ("+keyName+" <=> ?)";
+            case IN:
+            case NOT_IN:
+            	int numValues = leaf.getValues().length;
+            	if (numValues == 0) return (op == MatchOp.IN ? "FALSE" : "TRUE");
+            	StringBuffer inList = new StringBuffer();
+            	if (op == MatchOp.NOT_IN) inList.append('(').append(keyName).append(" IS NULL OR ");
+            	inList.append(keyName);
+            	inList.append(op == MatchOp.IN ? " IN (" : " NOT IN (");
+            	for (int i=0; i<numValues; i++) {
+            		if (i > 0) inList.append(',');
+            		inList.append('?');
+            	}
+            	inList.append(')');
+            	if (op == MatchOp.NOT_IN) inList.append(')');
+            	return inList.toString();
             case GREATER:
                 return keyName+" > ?";
             case GREATER_OR_EQUALS:
@@ -546,14 +1481,24 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
                 return keyName+" LIKE ?";
             case MAX:
             case MIN:
-                throw new AssertionError(op+" in constraints should have be converted to EQUALS at this point");
+            	// Compared with the max (or min) of the whole table in the same statement, so there's no
+            	// separate query to run first (or lock to hold until this one runs).  All ties match.
+            	// (Not used for locking reads, which get the max or min from fixMaxMin() first.)
+            	// If the table is empty (or the column is all NULL), the subquery is NULL and nothing matches.
+            	StringBuffer sql = new StringBuffer();
+            	sql.append(keyName).append(" = (SELECT ");
+            	sql.append(op == MatchOp.MAX ? "MAX(" : "MIN(");
+    			if (leaf.getProperty().getType() == String.class) sql.append("BINARY ");
+    			sql.append(keyName).append(") FROM ").append(tableName).append(')');
+    			return sql.toString();
             default:
                 throw new AssertionError("Unknown op: "+op);
         }
     }
 
-    private void fillArrayDBValues(Connection con, Object[] dbValues) throws SQLException {
-        for (int i=0; i<properties.length; i++) {
+    private void fillArrayDBValues(Connection con, Object[] dbValues, Property[] props) throws SQLException {
+        for (Property prop : props) {
+            int i = prop.getPropertyNum();
             if (properties[i].isArray()) {
                 boolean containsArrayData = (Boolean) dbValues[i];
                 if (!containsArrayData) {
@@ -563,7 +1508,7 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
                         " WHERE "+primaryKeyColumnNamesAndQuestions+" ORDER BY "+
                         primaryKeyColumnNamesCommaSeparated+','+ARRAY_POS_COLUMN_NAME;
                     if (printSQL != null) printDebug("fillArrayDBValues: "+sql);
-                    PreparedStatement pstmt = con.prepareStatement(sql);
+                    PreparedStatement pstmt = connectionPool.prepareStatement(con,sql);
                     Property[] priKeyDBProps = primaryKeyInfo.getProperties();
                     Object[] priKeyDBVals = primaryKeyInfo.getPrimaryKeyDBValues(dbValues);
                     pstmtSetDBValues(pstmt,1,priKeyDBProps,priKeyDBVals);
@@ -576,8 +1521,86 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
                     }
 
                     dbValues[i] = arrayDBValues.toArray();
-                    pstmt.close();
+                    rs.close();
+                    connectionPool.releaseStatement(con,pstmt);
+                }
+            }
+        }
+    }
+
+    // Fills in the arrays for the given properties (only those that were fetched for a projection)
+    private void fillArrayDBValues(Connection con, List<Object[]> dbValuesList, Property[] props) throws SQLException {
+        // Tables without primary keys have at most one row, so just fetch it one row at a time
+        if (primaryKeyProperties.length == 0) {
+            for (Object[] dbValues : dbValuesList) {
+                fillArrayDBValues(con,dbValues,props);
+            }
+            return;
+        }
+
+        Property[] priKeyDBProps = primaryKeyInfo.getProperties();
+
+        for (Property prop : props) {
+            if (!prop.isArray()) continue;
+            int i = prop.getPropertyNum();
+
+            // Only rows whose boolean column says they have array data need to be fetched
+            ArrayList<Object[]> rowsWithData = new ArrayList<Object[]>();
+            Map<PrimaryKey<B>,ArrayList<Object>> arrays = new HashMap<PrimaryKey<B>,ArrayList<Object>>();
+            for (Object[] dbValues : dbValuesList) {
+                boolean containsArrayData = (Boolean) dbValues[i];
+                if (containsArrayData) {
+                    rowsWithData.add(dbValues);
+                    arrays.put(new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues)),new ArrayList<Object>());
+                } else {
+                    dbValues[i] = null;
+                }
+            }
+
+            // Fetch the side table rows for many primary keys with each query
+            for (int start=0; start<rowsWithData.size(); start+=ARRAY_FETCH_BATCH_SIZE) {
+                int count = Math.min(ARRAY_FETCH_BATCH_SIZE,rowsWithData.size()-start);
+
+                // Round the number of keys up to a power of two (repeating the last key) so that
+                // only a few distinct statements are prepared (and cached) for all batch sizes
+                int paddedCount = 1;
+                while (paddedCount < count) paddedCount *= 2;
+
+                StringBuffer sql = new StringBuffer();
+                sql.append("SELECT * FROM ").append(tableName).append('_').append(properties[i].getName().toLowerCase());
+                sql.append(" WHERE (").append(primaryKeyColumnNamesCommaSeparated).append(") IN (");
+                for (int j=0; j<paddedCount; j++) {
+                    if (j > 0) sql.append(',');
+                    sql.append('(').append(primaryKeyQuestionsCommaSeparated).append(')');
                 }
+                sql.append(") ORDER BY ").append(primaryKeyColumnNamesCommaSeparated).append(',').append(ARRAY_POS_COLUMN_NAME);
+                if (printSQL != null) printDebug("fillArrayDBValues: "+sql);
+
+                PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+                int pos = 1;
+                for (int j=0; j<paddedCount; j++) {
+                    Object[] dbValues = rowsWithData.get(start+Math.min(j,count-1));
+                    pos += pstmtSetDBValues(pstmt,pos,priKeyDBProps,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
+                }
+                ResultSet rs = pstmt.executeQuery();
+
+                while (rs.next()) {
+                    Object[] priKeyDBVals = new Object[priKeyDBProps.length];
+                    for (int j=0; j<priKeyDBProps.length; j++) {
+                        Iterator<String> colNameIter = new MyArrayIterator<String>(priKeyDBProps[j].getColumnNames());
+                        priKeyDBVals[j] = loadNonArrayDBValue(priKeyDBProps[j],rs,colNameIter);
+                    }
+                    Iterator<String> colNameIter = new MyArrayIterator<String>(properties[i].getColumnNames());
+                    arrays.get(new PrimaryKey<B>(primaryKeyInfo,priKeyDBVals)).add(loadNonArrayDBValue(properties[i],rs,colNameIter));
+                }
+                rs.close();
+                connectionPool.releaseStatement(con,pstmt);
+            }
+
+            // Stitch the arrays back into the rows
+            for (Object[] dbValues : rowsWithData) {
+                PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
+                dbValues[i] = arrays.get(key).toArray();
             }
         }
     }
@@ -611,6 +1634,13 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
     }
 
+    /*
+     * Replaces max and min constraints with EQUALS constraints for the current max and min values.
+     * Used by deleteWhere() and updateWhere(), as MySQL doesn't allow a DELETE or UPDATE
+     * to have a subquery on its own table (and tracked beans are tested against the constraints),
+     * and by queries in read-write transactions, as the subquery wouldn't lock the rows it reads.
+     * Other queries match max and min constraints with subqueries (see computeWhereTest()).
+     */
     private void fixMaxMin(MatchArgTree argTree) throws RollbackException {
     	// Max and min matches must be run in a transaction
     	if (!TranImpl.isActive()) throw new AssertionError("Caller should have started a transaction");
@@ -643,11 +1673,12 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
     	            ResultSet rs = stmt.executeQuery(sql.toString());
     	            // If now rows in the table, then NULL is returned for max or min operator
     	            if (!rs.next()) throw new AssertionError("No row returned.");
+    	            // (The column is "max(binary name)" for Strings, and is binary, so it's read by position as a String)
     	            Object matchValue;
-	    			if (op == MatchOp.MAX) {
-	    				matchValue = rs.getObject("max("+prop.getName()+")");
+	    			if (prop.getType() == String.class) {
+	    				matchValue = rs.getString(1);
 	    			} else {
-	    				matchValue = rs.getObject("min("+prop.getName()+")");
+	    				matchValue = rs.getObject(1);
 	    			}
     	            stmt.close();
 
@@ -675,11 +1706,11 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         return loadNonArrayDBValue(prop,rs,colNameIter);
     }
 
-    private Object[] loadDBValues(ResultSet rs) throws SQLException {
+    // Loads the values of the given properties (the others, not fetched for a projection, are left null)
+    private Object[] loadDBValues(ResultSet rs, Property[] props) throws SQLException {
         Object[] dbValues = new Object[properties.length];
-        for (int i=0; i<properties.length; i++) {
-            Property prop = properties[i];
-            dbValues[i] = loadDBValue(prop,rs);
+        for (Property prop : props) {
+            dbValues[prop.getPropertyNum()] = loadDBValue(prop,rs);
         }
         return dbValues;
     }
@@ -704,14 +1735,135 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         return makeNonModIfNonMod(dbValue,prop);
     }
     
+    // A key's values as MySQL's default (case insensitive, PAD SPACE) collations compare them
+    private List<Object> foldKey(Object[] priKeyDBValues) {
+        List<Object> answer = new ArrayList<Object>(priKeyDBValues.length);
+        for (Object dbValue : priKeyDBValues) {
+            if (dbValue instanceof String) {
+                String s = ((String) dbValue).toLowerCase();
+                int end = s.length();
+                while (end > 0 && s.charAt(end-1) == ' ') end--;
+                dbValue = s.substring(0,end);
+            }
+            answer.add(dbValue);
+        }
+        return answer;
+    }
+
+    private Object makeIdDBValue(long id) {
+        if (primaryKeyInfo.getProperties()[0].getType() == long.class) return id;
+        return (int) id;
+    }
+
+    /*
+     * Returns the next id from the block of ids reserved by this factory, first reserving
+     * another block if it is used up.  Blocks are reserved by advancing this table's row in
+     * the id block table, in auto-commit mode so that the reservation is not undone if the
+     * transaction rolls back.  The first block starts after the largest id in the table.
+     *
+     * create() always holds its transaction's connection, so blocks are reserved on this
+     * factory's own connection, which is outside the pool (rather than by waiting for a
+     * second pooled connection, which creators refilling at once could use up).  Refills
+     * take turns on idBlockLock, and the others then take ids from the new block.
+     */
+    private long nextBlockId() throws RollbackException, SQLException {
+        synchronized (this) {
+            if (nextBlockId < idBlockEnd) return nextBlockId++;
+        }
+
+        synchronized (idBlockLock) {
+            synchronized (this) {
+                if (nextBlockId < idBlockEnd) return nextBlockId++;  // Refilled while we waited
+            }
+
+            int blockSize = idBlockSize;
+            long blockEnd;
+            try {
+                blockEnd = reserveIdBlock(blockSize);
+            } catch (SQLException e) {
+                // The connection may have been closed by the server while idle, so try a new one
+                closeIdBlockConnection();
+                try {
+                    blockEnd = reserveIdBlock(blockSize);
+                } catch (SQLException e2) {
+                    closeIdBlockConnection();
+                    throw e2;
+                }
+            }
+
+            synchronized (this) {
+                nextBlockId = blockEnd - blockSize;
+                idBlockEnd  = blockEnd;
+                return nextBlockId++;
+            }
+        }
+    }
+
+    // Reserves a block of ids on idBlockCon (opening it if needed), returning the end of the block
+    private long reserveIdBlock(int blockSize) throws RollbackException, SQLException {
+        if (idBlockCon == null) {
+            try {
+                idBlockCon = connectionPool.openUnpooledConnection();
+            } catch (ConnectionException e) {
+                throw new RollbackException(e);
+            }
+        }
+
+        Statement stmt = idBlockCon.createStatement();
+        if (!idBlockTableCreated) {
+            String sql = "CREATE TABLE IF NOT EXISTS "+ID_BLOCK_TABLE_NAME+
+                    " (table_name VARCHAR(255) NOT NULL PRIMARY KEY, next_id BIGINT NOT NULL)";
+            if (printSQL != null) printDebug("nextBlockId: "+sql);
+            stmt.executeUpdate(sql);
+            idBlockTableCreated = true;
+        }
+
+        String sql = "UPDATE "+ID_BLOCK_TABLE_NAME+" SET next_id=LAST_INSERT_ID(next_id+"+blockSize+")"+
+                " WHERE table_name='"+tableName+"'";
+        if (printSQL != null) printDebug("nextBlockId: "+sql);
+        if (stmt.executeUpdate(sql) == 0) {
+            String insertSql = "INSERT IGNORE INTO "+ID_BLOCK_TABLE_NAME+" (table_name,next_id)"+
+                    " SELECT '"+tableName+"', COALESCE(MAX("+primaryKeyColumnNamesCommaSeparated+"),0)+1 FROM "+tableName;
+            if (printSQL != null) printDebug("nextBlockId: "+insertSql);
+            stmt.executeUpdate(insertSql);
+            stmt.executeUpdate(sql);
+        }
+
+        ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()");
+        rs.next();
+        long blockEnd = rs.getLong(1);
+        if (printSQL != null) printDebug("nextBlockId: reserved ids "+(blockEnd-blockSize)+" to "+(blockEnd-1));
+        rs.close();
+        stmt.close();
+        return blockEnd;
+    }
+
+    private void closeIdBlockConnection() {
+        try {
+            if (idBlockCon != null) idBlockCon.close();
+        } catch (SQLException e) {
+            // Ignore, as the connection is being dropped anyway
+        }
+        idBlockCon = null;
+    }
+
     private void myRollbackAndThrow(Connection con, Exception e) throws RollbackException {
         if (TranImpl.isActive()) TranImpl.rollbackAndThrow(e);
 
         try { if (con.getAutoCommit()) con.rollback(); } catch (SQLException e2) { /* ignore */ }
-        try { con.close(); } catch (SQLException e2) { /* ignore */ }
+        connectionPool.discardConnection(con);
         TranImpl.rollbackAndThrow(e);
     }
 
+    private int pstmtSetPage(PreparedStatement pstmt, int pos, MatchPage page) throws SQLException {
+        if (page == null) return 0;
+
+        int startPos = pos;
+        if (page.hasLimit())      pstmt.setInt(pos++,page.getLimit());
+        if (page.getOffset() > 0) pstmt.setInt(pos++,page.getOffset());
+        return pos-startPos;
+    }
+
     private int pstmtSetArrayPos(PreparedStatement pstmt, int pos, int arrayPos) throws SQLException {
         if (printSQL != null) printDebug("        pstmtSetArrayPos: pos="+pos+", arrayPos="+arrayPos);
         pstmt.setInt(pos,arrayPos);
@@ -727,6 +1879,12 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
 
         if (printSQL != null) printDebug("        pstmtSetNonArrayDBValue: prop="+prop+", pos="+pos+", dbValue="+dbValue);
+        if (dbValue instanceof byte[]) {
+            // Streamed in when the statement is sent, rather than the driver keeping its own copy of a large value
+            byte[] bytes = (byte[]) dbValue;
+            pstmt.setBinaryStream(pos,new ByteArrayInputStream(bytes),bytes.length);
+            return 1;
+        }
         pstmt.setObject(pos,dbValue);
         return 1;
     }
@@ -754,10 +1912,10 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         return pos-startPos;
     }
 
-    private B[] sqlMatch(MatchArgTree argTree) throws RollbackException {
+    private B[] sqlMatch(MatchArgTree argTree, MatchPage page, Property[] props) throws RollbackException {
     	try {
-	        if (TranImpl.isActive() && argTree.containsNonPrimaryKeyProps()) {
-	        	// If we are in a transaction and we're matching on non-primary key properties,
+	        if (TranImpl.isActive() && (argTree.containsNonPrimaryKeyProps() || page.containsNonPrimaryKeyOrderProps())) {
+	        	// If we are in a transaction and we're matching (or ordering) on non-primary key properties,
 	        	// we must flush any changed beans (without committing the transaction)
 	        	// so that these changes can be searched.
 	
@@ -766,15 +1924,16 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
 	
 	        	flushChangedBeans();
 	        }
-	        
-	    	if (argTree.containsMaxOrMin()) {
-		    	fixMaxMin(argTree);
-	    	}
 	
-	        String sql = computeSql(argTree);
+	        validateAfterKey(page);
+
+	        // A subquery in a locking read is a snapshot read that doesn't lock what it reads, so in a
+	        // read-write transaction the max (or min) is read (and locked) first, by fixMaxMin()
+	        if (lockingReads() && argTree.containsMaxOrMin()) fixMaxMin(argTree);
+
+	        QueryPlan plan = getQueryPlan(argTree,page,props);
 	        fixDBValuesForPartialStringMatch(argTree);
-	        Object[] keyDBValues = DBValues.makeDBValues(argTree.getProperties(),argTree.getValues());
-	        return sqlMatch(sql, keyDBValues,argTree);
+	        return sqlMatch(plan.sql,plan.keyProps,getKeyDBValues(argTree,page),page,props);
     	} catch (RollbackException e) {
     		throw e;
     	} catch (Exception e) {
@@ -783,7 +1942,35 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
     	}
     }
 
-    private B[] sqlMatch(String sql, Object[] keyDBValues, MatchArgTree argTree) throws RollbackException {
+    /*
+     * The properties and values bound to the ?s in the WHERE clause of the SQL from computeSql():
+     * those of the constraints followed by those of the primary key given to afterKey() (if any).
+     */
+    private Property[] getKeyProperties(MatchArgTree argTree, MatchPage page) {
+        Property[] props = argTree.getProperties();
+        if (!page.hasAfterKey()) return props;
+
+        Property[] priKeyDBProps = primaryKeyInfo.getProperties();
+        Property[] answer = Arrays.copyOf(props,props.length+priKeyDBProps.length);
+        System.arraycopy(priKeyDBProps,0,answer,props.length,priKeyDBProps.length);
+        return answer;
+    }
+
+    private Object[] getKeyDBValues(MatchArgTree argTree, MatchPage page) {
+        Object[] dbValues = DBValues.makeDBValues(argTree.getProperties(),argTree.getValues());
+        if (!page.hasAfterKey()) return dbValues;
+
+        Object[] afterKeyDBValues = DBValues.makeDBValues(primaryKeyInfo.getProperties(),page.getAfterKeyValues());
+        Object[] answer = Arrays.copyOf(dbValues,dbValues.length+afterKeyDBValues.length);
+        System.arraycopy(afterKeyDBValues,0,answer,dbValues.length,afterKeyDBValues.length);
+        return answer;
+    }
+
+    /*
+     * Runs the query and makes beans from the rows.  If props is not the properties array,
+     * it is a projection: only those properties are loaded and the beans made are not tracked.
+     */
+    private B[] sqlMatch(String sql, Property[] keyProps, Object[] keyDBValues, MatchPage page, Property[] props) throws RollbackException {
         Connection con = join();
         Map<PrimaryKey<B>,BeanTrackerRec<B>> beanTracker = threadTrackedBeans.get();
 
@@ -791,36 +1978,53 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             if (containsArrayFields && !TranImpl.isActive()) con.setAutoCommit(false);
 
             if (printSQL != null) printDebug("sqlMatch: "+sql);
-            PreparedStatement pstmt = con.prepareStatement(sql.toString());
-            pstmtSetDBValues(pstmt,1,argTree.getProperties(),keyDBValues);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql);
+            int pos = 1;
+            pos += pstmtSetDBValues(pstmt,pos,keyProps,keyDBValues);
+            pstmtSetPage(pstmt,pos,page);
             ResultSet rs = pstmt.executeQuery();
 
+            // The answer keeps the order of the rows, so a place is left for each new bean
             List<B>  answerBeans = new ArrayList<B>();
+            List<Integer> newBeanPositions = new ArrayList<Integer>();
             ArrayList<Object[]> newDBValuesList = new ArrayList<Object[]>();
             while (rs.next()) {
-                Object[] dbValues = loadDBValues(rs);
+                Object[] dbValues = loadDBValues(rs,props);
                 PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
                 if (beanTracker != null && beanTracker.containsKey(key)) {
                 	answerBeans.add(beanTracker.get(key).getBean());
                 } else {
+                    newBeanPositions.add(answerBeans.size());
+                    answerBeans.add(null);
                     newDBValuesList.add(dbValues);
                 }
             }
-            pstmt.close();
+            rs.close();
+            connectionPool.releaseStatement(con,pstmt);
 
             if (containsArrayFields) {
-                for (Object[] dbValues : newDBValuesList) {
-                    fillArrayDBValues(con,dbValues);
-                }
+                fillArrayDBValues(con,newDBValuesList,props);
             }
 
-            if (TranImpl.isActive()) {
-                for (Object[] dbValues : newDBValuesList) {
-                    if (printSQL != null) printDebug("sqlMatch: making bean: "+DBValues.toString(dbValues));
-                    B bean = makeBean(dbValues);
+            if (lockingReads() && props == properties) {
+                List<B> newBeans = makeBeans(newDBValuesList);
+                for (int i=0; i<newBeans.size(); i++) {
+                    Object[] dbValues = newDBValuesList.get(i);
+                    if (printSQL != null) printDebug("sqlMatch: made bean: "+DBValues.toString(dbValues));
+                    B bean = newBeans.get(i);
                     PrimaryKey<B> key = new PrimaryKey<B>(primaryKeyInfo,primaryKeyInfo.getPrimaryKeyDBValues(dbValues));
                     beanTracker.put(key,new BeanTrackerRec<B>(key,bean,dbValues));
-                    answerBeans.add(bean);
+                    answerBeans.set(newBeanPositions.get(i),bean);
+                }
+                return toArray(answerBeans);
+            }
+
+            if (TranImpl.isActive()) {
+                // Partially populated beans (and beans read by read-only transactions)
+                // are not tracked (so they cannot be written back)
+                List<B> newBeans = makeBeans(newDBValuesList,props);
+                for (int i=0; i<newBeans.size(); i++) {
+                    answerBeans.set(newBeanPositions.get(i),newBeans.get(i));
                 }
                 return toArray(answerBeans);
             }
@@ -832,9 +2036,9 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             if (printSQL != null) printDebug("sqlMatch: releasing connection: "+con);
             connectionPool.releaseConnection(con);
 
-            for (Object[] dbValues : newDBValuesList) {
-                B bean = makeBean(dbValues);
-                answerBeans.add(bean);
+            List<B> newBeans = makeBeans(newDBValuesList,props);
+            for (int i=0; i<newBeans.size(); i++) {
+                answerBeans.set(newBeanPositions.get(i),newBeans.get(i));
             }
             return toArray(answerBeans);
         } catch (SQLException e) {
@@ -843,6 +2047,171 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         }
     }
 
+    /*
+     * Streams beans from an open result set (outside of a transaction).  Rows are read
+     * ARRAY_FETCH_BATCH_SIZE at a time and made into beans together, so their array
+     * properties and referenced beans are fetched in batches.  The result set's connection
+     * is busy until the cursor is closed, so array properties and referenced beans are fetched
+     * with a second connection, taken along with the first and lent to the lookups meanwhile.
+     */
+    private class SQLBeanCursor extends BufferedBeanCursor<B> {
+        private Connection        con;
+        private Connection        sideCon;
+        private PreparedStatement pstmt;
+        private ResultSet         rs;
+
+        SQLBeanCursor(Connection con, Connection sideCon, PreparedStatement pstmt, ResultSet rs) {
+            super(null);
+            this.con     = con;
+            this.sideCon = sideCon;
+            this.pstmt   = pstmt;
+            this.rs      = rs;
+        }
+
+        protected List<B> fetchChunk() throws RollbackException {
+            if (isClosed()) return null;
+
+            ArrayList<Object[]> dbValuesList = new ArrayList<Object[]>();
+            try {
+                while (dbValuesList.size() < ARRAY_FETCH_BATCH_SIZE && rs.next()) {
+                    dbValuesList.add(loadDBValues(rs,properties));
+                }
+            } catch (SQLException e) {
+                Connection c = con;
+                con = null;
+                closeQuietly();
+                myRollbackAndThrow(c,e);
+                throw new AssertionError("myRollbackAndThrow returned");
+            }
+
+            if (dbValuesList.size() == 0) return null;
+
+            // Referenced beans are looked up (by their factories) on the lent connection
+            connectionPool.lendConnection(sideCon);
+            try {
+                if (containsArrayFields) fillArrayDBValues(sideCon,dbValuesList,properties);
+                return makeBeans(dbValuesList);
+            } catch (SQLException e) {
+                connectionPool.lendConnection(null);
+                Connection c = sideCon;
+                sideCon = null;
+                myRollbackAndThrow(c,e);
+                throw new AssertionError("myRollbackAndThrow returned");
+            } catch (RollbackException e) {
+                // The failed lookup left the lent connection for us to discard
+                connectionPool.lendConnection(null);
+                Connection c = sideCon;
+                sideCon = null;
+                myRollbackAndThrow(c,e);
+                throw new AssertionError("myRollbackAndThrow returned");
+            } finally {
+                connectionPool.lendConnection(null);
+            }
+        }
+
+        public void close() {
+            if (isClosed()) return;
+            super.close();
+            closeQuietly();
+            if (con != null) connectionPool.releaseConnection(con);
+            if (sideCon != null) connectionPool.releaseConnection(sideCon);
+            con = null;
+            sideCon = null;
+        }
+
+        private void closeQuietly() {
+            try { rs.close();    } catch (SQLException e) { /* ignore */ }
+            try { pstmt.close(); } catch (SQLException e) { /* ignore */ }
+        }
+    }
+
+    /*
+     * A stream of a value read with ResultSet.getBinaryStream() that closes the result set
+     * (and releases the connection, if it's not the transaction's) when it is closed.
+     */
+    private class SQLInputStream extends FilterInputStream {
+        private Connection        con;    // null if the connection belongs to a transaction
+        private PreparedStatement pstmt;
+        private ResultSet         rs;
+        private boolean           closed = false;
+
+        SQLInputStream(InputStream in, Connection con, PreparedStatement pstmt, ResultSet rs) {
+            super(in);
+            this.con   = con;
+            this.pstmt = pstmt;
+            this.rs    = rs;
+        }
+
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (in != null) super.close();
+            } finally {
+                try { rs.close();    } catch (SQLException e) { /* ignore */ }
+                try { pstmt.close(); } catch (SQLException e) { /* ignore */ }
+                if (con != null) connectionPool.releaseConnection(con);
+                con = null;
+            }
+        }
+    }
+
+    /*
+     * Reads beans in a read-only transaction, running the match again for each chunk of
+     * ARRAY_FETCH_BATCH_SIZE beans.  The transaction's connection can't stream a result set
+     * while it is also used for array properties and referenced beans, but it is free between
+     * chunks, and as all the transaction's reads see the same snapshot, the chunks fit together.
+     * Unordered matches continue after the primary key of the last bean (with afterKey()).
+     * Ordered ones continue with offset(), as would tables with no primary key (of one row).
+     */
+    private class ReadOnlyBeanCursor extends BufferedBeanCursor<B> {
+        private List<MatchArg> selectArgs = new ArrayList<MatchArg>();  // The constraints, less limit, offset and afterKey
+        private boolean  byKey;
+        private int      remaining;  // Beans left to return before the limit (or MatchPage.NO_LIMIT)
+        private int      offset;
+        private Object[] afterKeyValues;
+
+        ReadOnlyBeanCursor(MatchArg[] constraints, MatchPage page) {
+            super(null);
+            for (MatchArg arg : constraints) {
+                if (arg instanceof PageMatchArg) {
+                    MatchOp op = ((PageMatchArg) arg).getOp();
+                    if (op == MatchOp.LIMIT || op == MatchOp.OFFSET || op == MatchOp.AFTER_KEY) continue;
+                }
+                selectArgs.add(arg);
+            }
+            byKey          = page.getOrderProperties().length == 0 && primaryKeyProperties.length > 0;
+            remaining      = page.getLimit();
+            offset         = page.getOffset();
+            afterKeyValues = page.getAfterKeyValues();
+        }
+
+        protected List<B> fetchChunk() throws RollbackException {
+            if (isClosed() || remaining == 0) return null;
+
+            int chunkSize = ARRAY_FETCH_BATCH_SIZE;
+            if (remaining != MatchPage.NO_LIMIT) chunkSize = Math.min(chunkSize,remaining);
+
+            List<MatchArg> chunkArgs = new ArrayList<MatchArg>(selectArgs);
+            chunkArgs.add(MatchArg.limit(chunkSize));
+            if (offset > 0) chunkArgs.add(MatchArg.offset(offset));
+            if (afterKeyValues != null) chunkArgs.add(MatchArg.afterKey(afterKeyValues));
+            B[] beans = match(chunkArgs.toArray(new MatchArg[chunkArgs.size()]));
+
+            if (remaining != MatchPage.NO_LIMIT) remaining -= beans.length;
+            if (beans.length < chunkSize) remaining = 0;  // That was the last chunk
+            if (beans.length == 0) return null;
+
+            if (byKey) {
+                offset = 0;  // (The user's offset only applies to the first chunk)
+                afterKeyValues = getPrimaryKeyValues(beans[beans.length-1]);
+            } else {
+                offset += beans.length;
+            }
+            return Arrays.asList(beans);
+        }
+    }
+
     private Class<?> sqlToJava(String sqlType) {
         String uc = sqlType.toUpperCase();
         // boolean isNonNull = sqlType.endsWith(" NOT NULL");
@@ -897,6 +2266,13 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
             con = connectionPool.getConnection();
             if (printSQL != null) printDebug("join: BEGIN_TRANSACTION, connection="+con);
 			con.setAutoCommit(false);
+			if (TranImpl.isReadOnly()) {
+				// All reads see the same snapshot, without taking any row locks
+	            if (printSQL != null) printDebug("join: START TRANSACTION READ ONLY, connection="+con);
+				Statement stmt = con.createStatement();
+				stmt.execute("START TRANSACTION READ ONLY, WITH CONSISTENT SNAPSHOT");
+				stmt.close();
+			}
 			threadConnection.set(con);
 
 			threadInvolvedMySQLFactories.set(new ArrayList<MySQLFactory<?>>());
@@ -905,11 +2281,16 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         } catch (ConnectionException e) {
             throw new RollbackException(e);
         } catch (SQLException e) {
-			try { con.close(); } catch (SQLException e2) { /* Ignore */ }
+			connectionPool.discardConnection(con);
             throw new RollbackException(e);
         }
 	}
 
+	// Reads lock the rows they read (with FOR UPDATE) in transactions that may change them
+	private boolean lockingReads() {
+		return TranImpl.isActive() && !TranImpl.isReadOnly();
+	}
+
 	private void cleanUpThreadVariables() {
 		// Clean up my instance's thread variables
 		threadTrackedBeans.set(null);
@@ -929,7 +2310,7 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
 			if (printSQL != null) printDebug("cleanUpThreadVariables: releasing connection: "+con);
 			connectionPool.releaseConnection(con);
 		} catch (SQLException e) {
-			try { con.close(); } catch (SQLException e2) { /* Ignore */ }
+			connectionPool.discardConnection(con);
 		}
 	}
 	
@@ -983,6 +2364,9 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
 		Map<PrimaryKey<B>,BeanTrackerRec<B>> trackedBeans = threadTrackedBeans.get();
 		if (trackedBeans == null) return;
 
+		// Beans with changes to the same (non-array) columns are written with one batched UPDATE
+		Map<String,ScalarChanges> scalarChangesMap = new LinkedHashMap<String,ScalarChanges>();
+
 		for (BeanTrackerRec<B> r : trackedBeans.values()) {
 			B bean = r.getBean();
             Object[] oldDBValues = r.getDBValues();
@@ -994,18 +2378,40 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
                         DBValues.toString(primaryKeyInfo.getPrimaryKeyDBValues(newDBValues))+"\"");
 			}
 
-			flushBeanIfChanged(oldDBValues,newDBValues);
+			boolean[] changedScalars = computeChangedScalars(oldDBValues,newDBValues);
+			if (changedScalars != null) {
+				String key = Arrays.toString(changedScalars);
+				ScalarChanges changes = scalarChangesMap.get(key);
+				if (changes == null) {
+					changes = new ScalarChanges(changedScalars);
+					scalarChangesMap.put(key,changes);
+				}
+				changes.newDBValuesList.add(newDBValues);
+			}
+
+			flushArraysIfChanged(oldDBValues,newDBValues);
 			r.setDBValues(newDBValues);
 		}
+
+		for (ScalarChanges changes : scalarChangesMap.values()) {
+			flushScalarChanges(changes.changedScalars,changes.newDBValuesList);
+		}
 	}
 
-	private void flushBeanIfChanged(Object[] oldDBValues, Object[] newDBValues) throws RollbackException {
-		boolean[] changedScalars = computeChangedScalars(oldDBValues,newDBValues);
-        boolean[] changedArrays  = computeChangedArrays(oldDBValues,newDBValues);
+	/*
+	 * The new values of the beans that have changes to the same (non-array) columns.
+	 */
+	private static class ScalarChanges {
+		boolean[]      changedScalars;
+		List<Object[]> newDBValuesList = new ArrayList<Object[]>();
 
-        if (changedScalars != null) {
-            flushScalarChanges(changedScalars,newDBValues);
-        }
+		ScalarChanges(boolean[] changedScalars) {
+			this.changedScalars = changedScalars;
+		}
+	}
+
+	private void flushArraysIfChanged(Object[] oldDBValues, Object[] newDBValues) throws RollbackException {
+        boolean[] changedArrays = computeChangedArrays(oldDBValues,newDBValues);
 
         if (changedArrays != null) {
             Object[] priKeyDBValues = primaryKeyInfo.getPrimaryKeyDBValues(newDBValues);
@@ -1138,126 +2544,218 @@ public class MySQLFactory<B> extends AbstractFactory<B> implements OutcomeListen
         return changed;
     }
 
-    private void flushScalarChanges(boolean[] changedScalars, Object[] newDBValues) throws RollbackException {
+    /*
+     * Writes the changes of all the beans that changed the same columns with one
+     * PreparedStatement, using addBatch() / executeBatch().  (With a driver that rewrites
+     * batches into multi-row statements, as with MySQL's rewriteBatchedStatements=true,
+     * the row counts may be Statement.SUCCESS_NO_INFO, in which case they can't be checked.)
+     */
+    private void flushScalarChanges(boolean[] changedScalars, List<Object[]> newDBValuesList) throws RollbackException {
 		StringBuffer sql = new StringBuffer();
         sql.append("UPDATE ").append(tableName).append(" SET ");
         appendColumnNamesSeparatorsQuestions(sql,changedProperties(changedScalars),",");
 		if (primaryKeyProperties.length > 0) sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
 
+        // Checked before anything is added to the (possibly cached) statement's batch
+        for (Object[] newDBValues : newDBValuesList) {
+            Object[] priKeyDBVals = primaryKeyInfo.getPrimaryKeyDBValues(newDBValues);
+            for (int i=0; i<properties.length; i++) {
+                if (changedScalars[i]) checkMaxStringLength(properties[i],newDBValues[i],priKeyDBVals);
+            }
+        }
+
         Connection con = threadConnection.get();
 
 		try {
-			PreparedStatement pstmt = con.prepareStatement(sql.toString());
-            if (printSQL != null) printDebug("flushScalarChanges: "+sql);
-            
-            Object[] priKeyDBVals = primaryKeyInfo.getPrimaryKeyDBValues(newDBValues);
+			PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+            if (printSQL != null) printDebug("flushScalarChanges: "+sql+" (batch of "+newDBValuesList.size()+")");
 
-            int pos = 1;
-			for(int i=0; i<properties.length; i++) {
-				if (changedScalars[i]) {
-                    if (printSQL != null) printDebug("   "+properties[i]+" value="+DBValues.toString(newDBValues[i]));
-                    checkMaxStringLength(properties[i],newDBValues[i],priKeyDBVals);
-                    pos += pstmtSetDBValue(pstmt,pos,properties[i],newDBValues[i]);
-				}
-			}
-            pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),priKeyDBVals);
-			int num = pstmt.executeUpdate();
-			pstmt.close();
+            int[] nums;
+            try {
+                for (Object[] newDBValues : newDBValuesList) {
+                    int pos = 1;
+                    for(int i=0; i<properties.length; i++) {
+                        if (changedScalars[i]) {
+                            if (printSQL != null) printDebug("   "+properties[i]+" value="+DBValues.toString(newDBValues[i]));
+                            pos += pstmtSetDBValue(pstmt,pos,properties[i],newDBValues[i]);
+                        }
+                    }
+                    pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),primaryKeyInfo.getPrimaryKeyDBValues(newDBValues));
+                    pstmt.addBatch();
+                }
+                nums = pstmt.executeBatch();
+            } catch (SQLException e) {
+                try { pstmt.clearBatch(); } catch (SQLException e2) { /* ignore */ }
+                throw e;
+            }
+			connectionPool.releaseStatement(con,pstmt);
 
-			if (num > 1) TranImpl.rollbackAndThrow("Found "+num+" rows with same primary key: "+DBValues.toString(priKeyDBVals));
-			if (num == 0) TranImpl.rollbackAndThrow("Couldn't find the row with this primary key: "+DBValues.toString(priKeyDBVals));
+            for (int i=0; i<nums.length; i++) {
+                if (nums[i] == Statement.SUCCESS_NO_INFO) continue;
+                Object[] priKeyDBVals = primaryKeyInfo.getPrimaryKeyDBValues(newDBValuesList.get(i));
+                if (nums[i] > 1) TranImpl.rollbackAndThrow("Found "+nums[i]+" rows with same primary key: "+DBValues.toString(priKeyDBVals));
+                if (nums[i] == 0) TranImpl.rollbackAndThrow("Couldn't find the row with this primary key: "+DBValues.toString(priKeyDBVals));
+            }
 		} catch (SQLException e) {
 			TranImpl.rollbackAndThrow(e);
 		}
 	}
     
+	/*
+	 * Writes the differences between the old and new values of an array to the side table:
+	 * changed elements with a batch of UPDATEs, removed elements with one DELETE of the tail
+	 * and added elements with multi-row INSERTs.  If most of the array changed, it is simply
+	 * replaced (all its rows deleted and the new ones inserted).
+	 */
 	private void flushArrayChanges(Object[] primaryKeyValues, Property prop, Object[] oldArray, Object[] newArray) throws RollbackException {
 		if (oldArray == null) oldArray = ZERO_LEN_ARRAY;
 		if (newArray == null) newArray = ZERO_LEN_ARRAY;
 		if (oldArray.length == 0 && newArray.length == 0) return;
 
         Connection con = threadConnection.get();
-        String propertyName = prop.getName().toLowerCase();
-        
+        String sideTableName = tableName+'_'+prop.getName().toLowerCase();
+
+        List<Integer> changedPositions = new ArrayList<Integer>();
+        for (int arrayPos=0; arrayPos<oldArray.length && arrayPos<newArray.length; arrayPos++) {
+            if (!DBValues.equalNonArrayDBValues(prop,oldArray[arrayPos],newArray[arrayPos])) changedPositions.add(arrayPos);
+        }
+
 		try {
-			PreparedStatement pstmt = null;
-			int arrayPos = 0;
-			while (arrayPos < oldArray.length && arrayPos < newArray.length) {
-				if (!DBValues.equalNonArrayDBValues(prop,oldArray[arrayPos],newArray[arrayPos])) {
-                    // Case 1: change value
-					if (pstmt == null) {
-                        StringBuffer sql = new StringBuffer();
-                        sql.append("UPDATE ").append(tableName).append('_').append(propertyName).append(" SET ");
-                        appendNonArrayColumnNamesAndQuestions(sql,prop,",");
-                        sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
-                        sql.append(" AND ").append(ARRAY_POS_COLUMN_NAME).append("=?");
-                        if (printSQL != null) printDebug("flushArrayChanges (Case#1): "+sql);
-						pstmt = con.prepareStatement(sql.toString());
-					}
-					checkMaxStringLength(prop,arrayPos,newArray[arrayPos],primaryKeyValues);
-                    int pos = 1;
-                    pos += pstmtSetNonArrayDBValue(pstmt,pos,prop,newArray[arrayPos]);
-                    pos += pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),primaryKeyValues);
-                    pstmtSetArrayPos(pstmt,pos,arrayPos);
-					int num = pstmt.executeUpdate();
-					if (num != 1) TranImpl.rollbackAndThrow("Failure when updating "+tableName+'_'+propertyName+": pos="+arrayPos+", value="+newArray[arrayPos]+": num="+num);
-				}
-				arrayPos++;
+			if (changedPositions.size()*2 > newArray.length) {
+				// Replace: fewer statements than updating most of the rows one by one
+				deleteArrayTail(con,sideTableName,primaryKeyValues,0,oldArray.length);
+				insertArrayElements(con,sideTableName,prop,primaryKeyValues,newArray,0);
+				return;
 			}
 
-			if (pstmt != null) {
-				pstmt.close();
-				pstmt = null;
+			if (changedPositions.size() > 0) updateArrayElements(con,sideTableName,prop,primaryKeyValues,newArray,changedPositions);
+
+			if (oldArray.length > newArray.length) {
+				deleteArrayTail(con,sideTableName,primaryKeyValues,newArray.length,oldArray.length-newArray.length);
 			}
 
-			while (arrayPos < oldArray.length) {
-                // Case 2: Delete values
-				if (pstmt == null) {
-                    StringBuffer sql = new StringBuffer();
-                    sql.append("DELETE FROM ").append(tableName).append('_').append(propertyName);
-                    sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
-                    sql.append(" AND ").append(ARRAY_POS_COLUMN_NAME).append("=?");
-                    if (printSQL != null) printDebug("flushArrayChanges (Case#2): "+sql);
-                    pstmt = con.prepareStatement(sql.toString());
-				}
+			if (newArray.length > oldArray.length) {
+				insertArrayElements(con,sideTableName,prop,primaryKeyValues,newArray,oldArray.length);
+			}
+		} catch (SQLException e) {
+			TranImpl.rollbackAndThrow(e);
+		}
+	}
+
+	private void updateArrayElements(Connection con, String sideTableName, Property prop, Object[] primaryKeyValues, Object[] newArray, List<Integer> positions) throws RollbackException, SQLException {
+		// Checked before anything is added to the (possibly cached) statement's batch
+		for (int arrayPos : positions) {
+			checkMaxStringLength(prop,arrayPos,newArray[arrayPos],primaryKeyValues);
+		}
+
+        StringBuffer sql = new StringBuffer();
+        sql.append("UPDATE ").append(sideTableName).append(" SET ");
+        appendNonArrayColumnNamesAndQuestions(sql,prop,",");
+        sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
+        sql.append(" AND ").append(ARRAY_POS_COLUMN_NAME).append("=?");
+        if (printSQL != null) printDebug("flushArrayChanges (update): "+sql+" (batch of "+positions.size()+")");
+		PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+
+		int[] nums;
+		try {
+			for (int arrayPos : positions) {
                 int pos = 1;
+                pos += pstmtSetNonArrayDBValue(pstmt,pos,prop,newArray[arrayPos]);
                 pos += pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),primaryKeyValues);
                 pstmtSetArrayPos(pstmt,pos,arrayPos);
-				int num = pstmt.executeUpdate();
-				if (num != 1) TranImpl.rollbackAndThrow("Failure when deleting from "+tableName+'_'+propertyName+": pos="+arrayPos+", value="+newArray[arrayPos]+": num="+num);
-				arrayPos++;
+                pstmt.addBatch();
 			}
+			nums = pstmt.executeBatch();
+		} catch (SQLException e) {
+			try { pstmt.clearBatch(); } catch (SQLException e2) { /* ignore */ }
+			throw e;
+		}
+		connectionPool.releaseStatement(con,pstmt);
 
+		for (int i=0; i<nums.length; i++) {
+			if (nums[i] == Statement.SUCCESS_NO_INFO) continue;
+			int arrayPos = positions.get(i);
+			if (nums[i] != 1) TranImpl.rollbackAndThrow("Failure when updating "+sideTableName+": pos="+arrayPos+", value="+newArray[arrayPos]+": num="+nums[i]);
+		}
+	}
 
-			if (pstmt != null) {
-				pstmt.close();
-				pstmt = null;
-			}
+	private void deleteArrayTail(Connection con, String sideTableName, Object[] primaryKeyValues, int fromArrayPos, int expectedNum) throws RollbackException, SQLException {
+        StringBuffer sql = new StringBuffer();
+        sql.append("DELETE FROM ").append(sideTableName);
+        sql.append(" WHERE ").append(primaryKeyColumnNamesAndQuestions);
+        sql.append(" AND ").append(ARRAY_POS_COLUMN_NAME).append(">=?");
+        if (printSQL != null) printDebug("flushArrayChanges (delete): "+sql);
+        PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+
+        int pos = 1;
+        pos += pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),primaryKeyValues);
+        pstmtSetArrayPos(pstmt,pos,fromArrayPos);
+		int num = pstmt.executeUpdate();
+		connectionPool.releaseStatement(con,pstmt);
+
+		if (num != expectedNum) TranImpl.rollbackAndThrow("Failure when deleting from "+sideTableName+": pos>="+fromArrayPos+": num="+num+" (expected "+expectedNum+")");
+	}
 
-			while (arrayPos < newArray.length) {
-                // Case 3: Add values
-				if (pstmt == null) {
-                    StringBuffer sql = new StringBuffer();
-                    sql.append("INSERT INTO ").append(tableName).append('_').append(propertyName).append(" SET ");
-                    sql.append(primaryKeyColumnNamesCommasQuestions).append(",");
-                    sql.append(ARRAY_POS_COLUMN_NAME).append("=?").append(",");
-                    appendNonArrayColumnNamesAndQuestions(sql,prop,",");
-                    if (printSQL != null) printDebug("flushArrayChanges (Case#3): "+sql);
-                    pstmt = con.prepareStatement(sql.toString());
-				}
-				checkMaxStringLength(prop,arrayPos,newArray[arrayPos],primaryKeyValues);
-                int pos = 1;
-                pos += pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),primaryKeyValues);
-                pos += pstmtSetArrayPos(pstmt,pos,arrayPos);
-                pstmtSetNonArrayDBValue(pstmt,pos,prop,newArray[arrayPos]);
-				int num = pstmt.executeUpdate();
-				if (num != 1) TranImpl.rollbackAndThrow("Failure when inserting into "+tableName+'_'+propertyName+": pos="+arrayPos+", value="+newArray[arrayPos]+": num="+num);
-				arrayPos++;
-			}
+	private void insertArrayElements(Connection con, String sideTableName, Property prop, Object[] primaryKeyValues, Object[] newArray, int fromArrayPos) throws RollbackException, SQLException {
+		List<ArrayRow> rows = new ArrayList<ArrayRow>(newArray.length-fromArrayPos);
+		for (int arrayPos=fromArrayPos; arrayPos<newArray.length; arrayPos++) {
+			rows.add(new ArrayRow(primaryKeyValues,arrayPos,newArray[arrayPos]));
+		}
+		insertArrayRows(con,sideTableName,prop,rows);
+	}
 
-			if (pstmt != null) pstmt.close();
-		} catch (SQLException e) {
-			TranImpl.rollbackAndThrow(e);
+	/*
+	 * An element of an array to be inserted into a side table.
+	 */
+	private static class ArrayRow {
+		Object[] priKeyDBValues;
+		int      arrayPos;
+		Object   dbValue;
+
+		ArrayRow(Object[] priKeyDBValues, int arrayPos, Object dbValue) {
+			this.priKeyDBValues = priKeyDBValues;
+			this.arrayPos       = arrayPos;
+			this.dbValue        = dbValue;
+		}
+	}
+
+	private void insertArrayRows(Connection con, String sideTableName, Property prop, List<ArrayRow> rows) throws RollbackException, SQLException {
+		int start = 0;
+		while (start < rows.size()) {
+			// The rows per INSERT is a power of two, so there are few different statements to cache
+			int count = INSERT_BATCH_SIZE;
+			while (count > rows.size()-start) count /= 2;
+
+			// (The value of an element may take several columns, as for referenced beans)
+			String[] columnNames = prop.getColumnNames();
+            StringBuffer sql = new StringBuffer();
+            sql.append("INSERT INTO ").append(sideTableName).append(" (");
+            sql.append(primaryKeyColumnNamesCommaSeparated).append(", ");
+            sql.append(ARRAY_POS_COLUMN_NAME);
+            for (String columnName : columnNames) sql.append(", ").append(columnName);
+            sql.append(") VALUES ");
+            for (int j=0; j<count; j++) {
+            	if (j > 0) sql.append(',');
+            	sql.append('(').append(primaryKeyQuestionsCommaSeparated).append(",?");
+            	for (int k=0; k<columnNames.length; k++) sql.append(",?");
+            	sql.append(')');
+            }
+            if (printSQL != null) printDebug("insertArrayRows: "+sql);
+            PreparedStatement pstmt = connectionPool.prepareStatement(con,sql.toString());
+
+            int pos = 1;
+            for (int j=0; j<count; j++) {
+            	ArrayRow row = rows.get(start+j);
+				checkMaxStringLength(prop,row.arrayPos,row.dbValue,row.priKeyDBValues);
+                pos += pstmtSetDBValues(pstmt,pos,primaryKeyInfo.getProperties(),row.priKeyDBValues);
+                pos += pstmtSetArrayPos(pstmt,pos,row.arrayPos);
+                pos += pstmtSetNonArrayDBValue(pstmt,pos,prop,row.dbValue);
+            }
+			int num = pstmt.executeUpdate();
+			connectionPool.releaseStatement(con,pstmt);
+
+			if (num != count) TranImpl.rollbackAndThrow("Failure when inserting into "+sideTableName+": count="+count+": num="+num);
+			start += count;
 		}
 	}
 
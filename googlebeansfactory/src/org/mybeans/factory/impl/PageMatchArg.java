@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import org.mybeans.factory.MatchArg;
+
+public class PageMatchArg extends MatchArg {
+    private MatchOp  op;
+    private Object[] values;
+
+    public PageMatchArg(MatchOp op, Object...values) {
+        this.op     = op;
+        this.values = values.clone();
+    }
+
+    public MatchOp  getOp()     { return op;             }
+    public Object[] getValues() { return values.clone(); }
+}
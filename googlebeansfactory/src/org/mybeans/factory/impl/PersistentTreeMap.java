@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A sorted map that is never changed.  Rather, <tt>with()</tt> and <tt>without()</tt> return
+ * a new map that shares all but the O(log n) nodes on the path to the changed key with this one
+ * (it's an AVL tree, copied along that path).  So keeping the old version of a map, for readers
+ * that are still using it, costs only the nodes that changed.  Entries are iterated in key order.
+ */
+public class PersistentTreeMap<K extends Comparable<? super K>,V> extends AbstractMap<K,V> {
+	private static class Node<K,V> extends AbstractMap.SimpleImmutableEntry<K,V> {
+		private static final long serialVersionUID = 1L;
+
+		final Node<K,V> left;
+		final Node<K,V> right;
+		final int       height;
+
+		Node(K key, V value, Node<K,V> left, Node<K,V> right) {
+			super(key,value);
+			this.left   = left;
+			this.right  = right;
+			this.height = 1 + Math.max(height(left),height(right));
+		}
+	}
+
+	private final Node<K,V> root;
+	private final int       size;
+
+	public PersistentTreeMap() {
+		this(null,0);
+	}
+
+	private PersistentTreeMap(Node<K,V> root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	public boolean containsKey(Object key) {
+		return getNode(key) != null;
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		return new AbstractSet<Map.Entry<K,V>>() {
+			public Iterator<Map.Entry<K,V>> iterator() { return iteratorAfter(null); }
+			public int size() { return size; }
+		};
+	}
+
+	public Map.Entry<K,V> firstEntry() {
+		Node<K,V> n = root;
+		if (n == null) return null;
+		while (n.left != null) n = n.left;
+		return n;
+	}
+
+	public V get(Object key) {
+		Node<K,V> n = getNode(key);
+		if (n == null) return null;
+		return n.getValue();
+	}
+
+	// The entry with the least key greater than the given key (or null if there's none)
+	public Map.Entry<K,V> higherEntry(K key) {
+		Node<K,V> answer = null;
+		Node<K,V> n = root;
+		while (n != null) {
+			if (key.compareTo(n.getKey()) < 0) {
+				answer = n;
+				n = n.left;
+			} else {
+				n = n.right;
+			}
+		}
+		return answer;
+	}
+
+	// Iterates over the entries with keys greater than afterKey (or all of them, if it's null)
+	public Iterator<Map.Entry<K,V>> iteratorAfter(K afterKey) {
+		return new EntryIterator(afterKey);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Returns a map with the given key mapped to the given value (this map is unchanged)
+	public PersistentTreeMap<K,V> with(K key, V value) {
+		int newSize = (getNode(key) == null ? size+1 : size);
+		return new PersistentTreeMap<K,V>(insert(root,key,value),newSize);
+	}
+
+	// Returns a map without the given key (this map is unchanged)
+	public PersistentTreeMap<K,V> without(K key) {
+		if (getNode(key) == null) return this;
+		return new PersistentTreeMap<K,V>(delete(root,key),size-1);
+	}
+
+	private Node<K,V> balance(K key, V value, Node<K,V> left, Node<K,V> right) {
+		if (height(left) > height(right)+1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node<K,V>(left.getKey(),left.getValue(),left.left,new Node<K,V>(key,value,left.right,right));
+			}
+			Node<K,V> lr = left.right;
+			return new Node<K,V>(lr.getKey(),lr.getValue(),
+					new Node<K,V>(left.getKey(),left.getValue(),left.left,lr.left),
+					new Node<K,V>(key,value,lr.right,right));
+		}
+
+		if (height(right) > height(left)+1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node<K,V>(right.getKey(),right.getValue(),new Node<K,V>(key,value,left,right.left),right.right);
+			}
+			Node<K,V> rl = right.left;
+			return new Node<K,V>(rl.getKey(),rl.getValue(),
+					new Node<K,V>(key,value,left,rl.left),
+					new Node<K,V>(right.getKey(),right.getValue(),rl.right,right.right));
+		}
+
+		return new Node<K,V>(key,value,left,right);
+	}
+
+	private Node<K,V> delete(Node<K,V> n, K key) {
+		int c = key.compareTo(n.getKey());
+		if (c < 0) return balance(n.getKey(),n.getValue(),delete(n.left,key),n.right);
+		if (c > 0) return balance(n.getKey(),n.getValue(),n.left,delete(n.right,key));
+
+		if (n.left  == null) return n.right;
+		if (n.right == null) return n.left;
+
+		// Replaced by its successor
+		Node<K,V> next = n.right;
+		while (next.left != null) next = next.left;
+		return balance(next.getKey(),next.getValue(),n.left,deleteFirst(n.right));
+	}
+
+	private Node<K,V> deleteFirst(Node<K,V> n) {
+		if (n.left == null) return n.right;
+		return balance(n.getKey(),n.getValue(),deleteFirst(n.left),n.right);
+	}
+
+	private Node<K,V> getNode(Object key) {
+		@SuppressWarnings("unchecked")
+		K k = (K) key;
+		Node<K,V> n = root;
+		while (n != null) {
+			int c = k.compareTo(n.getKey());
+			if (c == 0) return n;
+			n = (c < 0 ? n.left : n.right);
+		}
+		return null;
+	}
+
+	private Node<K,V> insert(Node<K,V> n, K key, V value) {
+		if (n == null) return new Node<K,V>(key,value,null,null);
+
+		int c = key.compareTo(n.getKey());
+		if (c == 0) return new Node<K,V>(key,value,n.left,n.right);
+		if (c < 0)  return balance(n.getKey(),n.getValue(),insert(n.left,key,value),n.right);
+		return balance(n.getKey(),n.getValue(),n.left,insert(n.right,key,value));
+	}
+
+	private static int height(Node<?,?> n) {
+		return (n == null ? 0 : n.height);
+	}
+
+	/*
+	 * Walks the tree in key order, keeping the nodes still to be visited (each node whose left
+	 * subtree is being visited) on a stack.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K,V>> {
+		private ArrayList<Node<K,V>> stack = new ArrayList<Node<K,V>>();
+
+		EntryIterator(K afterKey) {
+			Node<K,V> n = root;
+			while (n != null) {
+				if (afterKey == null || afterKey.compareTo(n.getKey()) < 0) {
+					stack.add(n);
+					n = n.left;
+				} else {
+					n = n.right;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return stack.size() > 0;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (stack.size() == 0) throw new NoSuchElementException();
+			Node<K,V> answer = stack.remove(stack.size()-1);
+			for (Node<K,V> n = answer.right; n != null; n = n.left) {
+				stack.add(n);
+			}
+			return answer;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -31,6 +31,11 @@ public class PrimaryKey<B> implements Comparable<PrimaryKey<B>> {
 
     public Object[] getDBValues() { return dbValues; }
 
+    /*
+     * Points this key at other values.  Only for a key used to probe maps (never for one stored in a map).
+     */
+    void setDBValues(Object[] primaryKeyDBValues) { dbValues = primaryKeyDBValues; }
+
     public int hashCode() {
         Property[] priKeyProps = primaryKeyInfo.getProperties();
         return hashCode(priKeyProps,dbValues);
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.mybeans.factory.RollbackException;
+
+/**
+ * The referenced beans needed to materialize a batch of beans.
+ *
+ * First the primary keys of all the referenced beans are added, then <tt>resolve()</tt>
+ * looks them up with one <tt>lookupBeans()</tt> call per referenced factory.  Beans that
+ * reference the same bean then share the same (referenced) bean instance.
+ */
+public class ReferencedBeans {
+	private Map<AbstractFactory<?>,FactoryBeans<?>> factoryBeans = new HashMap<AbstractFactory<?>,FactoryBeans<?>>();
+
+	public void addKey(ReferencedBeanProperty refProp, Object[] refPriKeyDBValues) {
+		if (refPriKeyDBValues == null) return;
+		getFactoryBeans(refProp.getFactory()).addKey(refPriKeyDBValues);
+	}
+
+	public Object get(ReferencedBeanProperty refProp, Object[] refPriKeyDBValues) {
+		FactoryBeans<?> f = factoryBeans.get(refProp.getFactory());
+		if (f == null) return null;
+		return f.get(refPriKeyDBValues);
+	}
+
+	public void resolve() throws RollbackException {
+		for (FactoryBeans<?> f : factoryBeans.values()) {
+			f.resolve();
+		}
+	}
+
+	private <R> FactoryBeans<R> getFactoryBeans(AbstractFactory<R> factory) {
+		@SuppressWarnings("unchecked")
+		FactoryBeans<R> f = (FactoryBeans<R>) factoryBeans.get(factory);
+		if (f == null) {
+			f = new FactoryBeans<R>(factory);
+			factoryBeans.put(factory,f);
+		}
+		return f;
+	}
+
+	private static class FactoryBeans<R> {
+		private AbstractFactory<R>    factory;
+		private Set<PrimaryKey<R>>    keys  = new LinkedHashSet<PrimaryKey<R>>();
+		private Map<PrimaryKey<R>,R>  beans = null;
+
+		FactoryBeans(AbstractFactory<R> factory) {
+			this.factory = factory;
+		}
+
+		void addKey(Object[] priKeyDBValues) {
+			keys.add(new PrimaryKey<R>(factory.primaryKeyInfo,priKeyDBValues));
+		}
+
+		R get(Object[] priKeyDBValues) {
+			if (beans == null) return null;
+			return beans.get(new PrimaryKey<R>(factory.primaryKeyInfo,priKeyDBValues));
+		}
+
+		void resolve() throws RollbackException {
+			beans = factory.lookupBeans(keys);
+		}
+	}
+}
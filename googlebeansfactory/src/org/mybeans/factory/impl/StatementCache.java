@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2005-2006 Jeffrey L. Eppinger.  All Rights Reserved.
+ *     Permission granted for educational use only.
+ */
+
+package org.mybeans.factory.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A least-recently-used cache of <tt>PreparedStatement</tt>s for one pooled connection,
+ * keyed on the SQL text.
+ *
+ * A connection is used by only one thread at a time (between <tt>ConnectionPool.getConnection()</tt>
+ * and <tt>ConnectionPool.releaseConnection()</tt>), so this class is not synchronized.
+ * Statements pushed out of the cache (and all statements when the connection is
+ * closed by the pool) are closed.
+ */
+public class StatementCache {
+	private static final String GENERATED_KEYS_PREFIX = "RETURN_GENERATED_KEYS: ";
+
+	private Connection con;
+	private int        maxStatements;
+	private long       hits   = 0;
+	private long       misses = 0;
+
+	private LinkedHashMap<String,PreparedStatement> statements;
+
+	// The statements in the cache, so contains() needn't scan it
+	private Set<PreparedStatement> cachedStatements = Collections.newSetFromMap(new IdentityHashMap<PreparedStatement,Boolean>());
+
+	public StatementCache(Connection con, int maxStatements) {
+		this.con = con;
+		this.maxStatements = maxStatements;
+
+		// Access ordered, so the eldest entry is the least recently used
+		statements = new LinkedHashMap<String,PreparedStatement>(16,0.75f,true) {
+			protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+				if (size() <= StatementCache.this.maxStatements) return false;
+				cachedStatements.remove(eldest.getValue());
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public long getHits()   { return hits;   }
+	public long getMisses() { return misses; }
+	public int  size()      { return statements.size(); }
+
+	public boolean contains(PreparedStatement pstmt) {
+		return cachedStatements.contains(pstmt);
+	}
+
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return prepareStatement(sql,Statement.NO_GENERATED_KEYS);
+	}
+
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		// Statements returning generated keys are cached apart from others with the same SQL
+		String key = sql;
+		if (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) key = GENERATED_KEYS_PREFIX+sql;
+
+		PreparedStatement pstmt = statements.get(key);
+		if (pstmt != null) {
+			hits++;
+			return pstmt;
+		}
+
+		misses++;
+		if (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) {
+			pstmt = con.prepareStatement(sql,Statement.RETURN_GENERATED_KEYS);
+		} else {
+			pstmt = con.prepareStatement(sql);
+		}
+		if (maxStatements > 0) {
+			cachedStatements.add(pstmt);
+			statements.put(key,pstmt);
+		}
+		return pstmt;
+	}
+
+	public void close() {
+		for (PreparedStatement pstmt : statements.values()) {
+			closeQuietly(pstmt);
+		}
+		statements.clear();
+		cachedStatements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement pstmt) {
+		try {
+			pstmt.close();
+		} catch (SQLException e) {
+			// Ignore...the statement is being thrown away
+		}
+	}
+}
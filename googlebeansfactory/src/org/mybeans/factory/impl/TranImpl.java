@@ -20,6 +20,11 @@ public class TranImpl {
         myTran.set(new TranImpl());
     }
 
+    public static void beginReadOnly() throws RollbackException {
+        begin();
+        myTran.get().readOnly = true;
+    }
+
     public static void commit() throws RollbackException {
         TranImpl t = myTran.get();
         if (t == null) rollbackAndThrow("Not in a transaction");
@@ -30,6 +35,15 @@ public class TranImpl {
         return myTran.get() != null;
     }
 
+    public static boolean isReadOnly() {
+        TranImpl t = myTran.get();
+        return t != null && t.readOnly;
+    }
+
+    static void checkWritable() throws RollbackException {
+        if (isReadOnly()) rollbackAndThrow("Cannot change the database in a read-only transaction");
+    }
+
     public static void rollback() {
         TranImpl t = myTran.get();
         if (t == null) throw new AssertionError("Not in a transaction");
@@ -54,6 +68,7 @@ public class TranImpl {
 	}
 
     private ArrayList<OutcomeListener> involvedFactories = new ArrayList<OutcomeListener>();
+    private boolean readOnly = false;
 
 	private TranImpl() {
         /* Private constructor forces use of static factory (TranImpl.begin()) */